@@ -0,0 +1,45 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all {@link jenkins.benchmark.jmh.JmhBenchmark} classes. Only executed in the {@code jmh}
+ * profile ({@code mvn test -Pjmh}). The results (throughput and allocation rate) are written into
+ * {@code target/jmh-report.json}.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .warmupIterations(2)
+                .measurementIterations(5)
+                .forks(1)
+                .threads(1)
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+
+        // run only some benchmarks, like -Djmh.include=QueuedContextsBenchmark
+        String include = System.getProperty("jmh.include");
+        if (include != null && !include.isEmpty()) {
+            options.include(include);
+        } else {
+            new BenchmarkFinder(getClass()).findBenchmarks(options);
+        }
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,123 @@
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Hot paths of {@link LockableResourcesManager} on synthetic resource pools. */
+@JmhBenchmark
+public class LockableResourcesManagerBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(LockableResourcesManagerBenchmark.class.getName());
+
+    /** Amount of different labels, each resource has two of them. */
+    private static final int LABELS = 50;
+
+    @State(Scope.Benchmark)
+    public static class ManagerState extends JmhBenchmarkState {
+
+        @Param({"100", "1000", "10000", "100000"})
+        public int resourceCount;
+
+        LockableResourcesManager lrm;
+        FreeStyleBuild build;
+        List<LockableResourcesStruct> requirement;
+        LockableResourcesStruct labelRequirement;
+        long queueItemId = 1;
+
+        @Override
+        public void setup() throws Exception {
+            lrm = LockableResourcesManager.get();
+            for (int i = 0; i < resourceCount; i++) {
+                LockableResource resource = new LockableResource(resourceName(i));
+                resource.setLabels("label-" + (i % LABELS) + " label-" + ((i + 1) % LABELS));
+                lrm.addResource(resource);
+            }
+            lrm.save();
+
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "benchmark");
+            build = project.scheduleBuild2(0).get();
+
+            labelRequirement = new LockableResourcesStruct(null, "label-7", 2);
+            requirement = Collections.singletonList(labelRequirement);
+        }
+    }
+
+    /** Index of the next resource, so the look-ups do not hit always the same one. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            next = 0;
+        }
+
+        String nextName(ManagerState state) {
+            next = (next + 7919) % state.resourceCount;
+            return resourceName(next);
+        }
+    }
+
+    static String resourceName(int i) {
+        return "resource-" + i;
+    }
+
+    @Benchmark
+    public void fromName(ManagerState state, Cursor cursor, Blackhole blackhole) {
+        blackhole.consume(state.lrm.fromName(cursor.nextName(state)));
+    }
+
+    @Benchmark
+    public void getResourcesWithLabel(ManagerState state, Blackhole blackhole) {
+        blackhole.consume(state.lrm.getResourcesWithLabel("label-7"));
+    }
+
+    @Benchmark
+    public void getResourcesWithLabelExpression(ManagerState state, Blackhole blackhole) {
+        blackhole.consume(state.lrm.getResourcesWithLabel("label-7 && !label-8"));
+    }
+
+    @Benchmark
+    public void getAvailableResources(ManagerState state, Blackhole blackhole) {
+        blackhole.consume(state.lrm.getAvailableResources(state.requirement));
+    }
+
+    @Benchmark
+    public void tryQueue(ManagerState state, Blackhole blackhole) throws ExecutionException {
+        final long queueItemId = state.queueItemId++;
+        List<LockableResource> selected =
+                state.lrm.tryQueue(state.labelRequirement, queueItemId, "benchmark", 2, Collections.emptyMap(), LOGGER);
+        if (selected != null) {
+            for (LockableResource resource : selected) {
+                resource.unqueue();
+            }
+        }
+        blackhole.consume(selected);
+    }
+
+    @Benchmark
+    public void lockUnlock(ManagerState state, Cursor cursor) {
+        final String name = cursor.nextName(state);
+        state.lrm.lock(Collections.singletonList(state.lrm.fromName(name)), state.build);
+        state.lrm.unlockNames(Collections.singletonList(name), state.build);
+    }
+
+    @Benchmark
+    public void save(ManagerState state) {
+        state.lrm.save();
+    }
+}
@@ -0,0 +1,73 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Collections;
+import java.util.List;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Queue operations of the lock step ({@link QueuedContexts} and {@link QueueWakeupIndex}) with 10 to
+ * 10k waiting contexts.
+ */
+@JmhBenchmark
+public class QueuedContextsBenchmark {
+
+    /** Amount of different labels the contexts are waiting for. */
+    private static final int LABELS = 50;
+
+    @State(Scope.Benchmark)
+    public static class QueueState extends JmhBenchmarkState {
+
+        @Param({"10", "1000", "10000"})
+        public int queueSize;
+
+        QueuedContexts queue;
+        QueueWakeupIndex wakeupIndex;
+        List<LockableResource> freed;
+        int next;
+
+        @Override
+        public void setup() throws Exception {
+            LockableResourcesManager lrm = LockableResourcesManager.get();
+            for (int i = 0; i < LABELS; i++) {
+                lrm.createResourceWithLabel("resource-" + i, "label-" + i);
+            }
+
+            queue = new QueuedContexts();
+            wakeupIndex = new QueueWakeupIndex();
+            for (int i = 0; i < queueSize; i++) {
+                QueuedContextStruct entry = waiter(i);
+                queue.add(entry, false);
+                wakeupIndex.add(entry);
+            }
+            freed = Collections.singletonList(lrm.fromName("resource-7"));
+        }
+    }
+
+    static QueuedContextStruct waiter(int i) {
+        LockableResourcesStruct requirement = new LockableResourcesStruct(null, "label-" + (i % LABELS), 1);
+        return new QueuedContextStruct(null, Collections.singletonList(requirement), "waiter-" + i, null, i % 3);
+    }
+
+    @Benchmark
+    public void enqueueDequeue(QueueState state, Blackhole blackhole) {
+        QueuedContextStruct entry = waiter(state.next++);
+        state.queue.add(entry, false);
+        state.wakeupIndex.add(entry);
+        blackhole.consume(state.queue.getById(entry.getId()));
+        state.wakeupIndex.remove(entry);
+        state.queue.remove(entry);
+    }
+
+    @Benchmark
+    public void waitersForUnlockedResource(QueueState state, Blackhole blackhole) {
+        blackhole.consume(state.queue.inQueueOrder(state.wakeupIndex.getWaitersFor(state.freed)));
+    }
+}
@@ -0,0 +1,83 @@
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Releases the resources of many builds at once, by {@link LockableResourcesManager#unlockNames(Map)}
+ * (one queue sweep and one save) compared with one {@link LockableResourcesManager#unlockNames(List,
+ * Run)} per build (one sweep and one save each, like before the batch unlock). The resources are
+ * locked again before each invocation, outside of the measurement.
+ */
+@JmhBenchmark
+public class UnlockBenchmark {
+
+    /** Amount of resources each build holds. */
+    private static final int RESOURCES_PER_BUILD = 2;
+
+    @State(Scope.Benchmark)
+    public static class UnlockState extends JmhBenchmarkState {
+
+        @Param({"1", "10", "50"})
+        public int buildCount;
+
+        /** Amount of other (free) resources, they are part of each save. */
+        @Param({"1000", "10000"})
+        public int poolSize;
+
+        LockableResourcesManager lrm;
+        final Map<Run<?, ?>, List<String>> namesByBuild = new LinkedHashMap<>();
+
+        @Override
+        public void setup() throws Exception {
+            lrm = LockableResourcesManager.get();
+            for (int i = 0; i < poolSize; i++) {
+                lrm.addResource(new LockableResource("pool-" + i));
+            }
+
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "benchmark");
+            for (int b = 0; b < buildCount; b++) {
+                Run<?, ?> build = project.scheduleBuild2(0).get();
+                List<String> names = new ArrayList<>();
+                for (int r = 0; r < RESOURCES_PER_BUILD; r++) {
+                    final String name = "build-" + b + "-" + r;
+                    lrm.addResource(new LockableResource(name));
+                    names.add(name);
+                }
+                namesByBuild.put(build, names);
+            }
+            lrm.save();
+        }
+
+        @Setup(Level.Invocation)
+        public void lockAll() {
+            for (Map.Entry<Run<?, ?>, List<String>> entry : namesByBuild.entrySet()) {
+                lrm.lock(lrm.fromNames(entry.getValue()), entry.getKey());
+            }
+        }
+    }
+
+    @Benchmark
+    public void unlockBatch(UnlockState state) {
+        state.lrm.unlockNames(state.namesByBuild);
+    }
+
+    @Benchmark
+    public void unlockPerBuild(UnlockState state) {
+        for (Map.Entry<Run<?, ?>, List<String>> entry : state.namesByBuild.entrySet()) {
+            state.lrm.unlockNames(entry.getValue(), entry.getKey());
+        }
+    }
+}
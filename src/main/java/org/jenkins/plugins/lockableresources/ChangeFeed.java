@@ -0,0 +1,198 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+// -----------------------------------------------------------------------------
+/**
+ * Bounded history of the resource state changes (lock, unlock, reserve, queue ...) and of the
+ * contexts entering and leaving the lock queue.
+ *
+ * <p>Each change gets the next revision. Clients ask for the changes since the last revision they
+ * have seen and wait, until there are some. Only the last changes are kept, a client which is too
+ * far behind gets an incomplete answer and must read the whole state again.
+ */
+@Restricted(NoExternalUse.class)
+public final class ChangeFeed {
+
+    private final Change[] changes;
+
+    /** Position of the next change in {@link #changes}. */
+    private int next = 0;
+
+    /** Amount of kept changes. */
+    private int count = 0;
+
+    /** Revision of the last change. Starts with the time, so the revisions of a previous run are older. */
+    private long revision = System.currentTimeMillis();
+
+    ChangeFeed(final int capacity) {
+        this.changes = new Change[Math.max(1, capacity)];
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns revision of the last change. */
+    public synchronized long getRevision() {
+        return this.revision;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Remembers the current state of a registered resource, so only later changes are reported. */
+    synchronized void register(@NonNull final LockableResource resource) {
+        resource.setFeedState(resource.getState());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called on each change of the resource, adds a change when its state has been changed. */
+    synchronized void resourceChanged(@NonNull final LockableResource resource) {
+        final String previous = resource.getFeedState();
+        final String state = resource.getState();
+        if (state.equals(previous)) {
+            // description, note, timestamp ... or the same change reported again
+            return;
+        }
+        resource.setFeedState(state);
+        this.add(new Change(typeOf(previous, state), resource.getName(), null, state, previous));
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void contextQueued(@NonNull final QueuedContextStruct context) {
+        this.add(new Change("ENQUEUE", context.getResourceDescription(), context.getId(), null, null));
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void contextUnqueued(@NonNull final QueuedContextStruct context) {
+        this.add(new Change("DEQUEUE", context.getResourceDescription(), context.getId(), null, null));
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the changes done after revision *since*. When there are none, waits up to
+     * *timeoutMillis* for them (long-poll).
+     *
+     * @return JSON object with the current {@code revision}, the {@code changes} and the flag {@code
+     *     complete}. Not complete means, that some changes after *since* are not available any more.
+     */
+    @NonNull
+    public synchronized JSONObject since(final long since, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (this.revision == since) {
+            final long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            this.wait(wait);
+        }
+
+        final long oldest = this.revision - this.count + 1;
+        // 'since' might be from a previous Jenkins run, or older than the kept changes
+        final boolean complete = since <= this.revision && since >= oldest - 1;
+        final JSONArray list = new JSONArray();
+        if (complete) {
+            for (Change change : this.list(since)) {
+                list.add(change.toJson());
+            }
+        }
+
+        final JSONObject json = new JSONObject();
+        json.put("revision", this.revision);
+        json.put("complete", complete);
+        json.put("changes", list);
+        return json;
+    }
+
+    // ---------------------------------------------------------------------------
+    private List<Change> list(final long since) {
+        final int amount = (int) Math.min(this.count, this.revision - since);
+        if (amount <= 0) {
+            return Collections.emptyList();
+        }
+        List<Change> list = new ArrayList<>(amount);
+        for (int i = amount; i > 0; i--) {
+            list.add(this.changes[Math.floorMod(this.next - i, this.changes.length)]);
+        }
+        return list;
+    }
+
+    // ---------------------------------------------------------------------------
+    private void add(final Change change) {
+        change.revision = ++this.revision;
+        this.changes[this.next] = change;
+        this.next = (this.next + 1) % this.changes.length;
+        this.count = Math.min(this.count + 1, this.changes.length);
+        this.notifyAll();
+    }
+
+    // ---------------------------------------------------------------------------
+    private static String typeOf(@CheckForNull final String previous, final String state) {
+        switch (state) {
+            case LockableResource.STATE_LOCKED:
+                return "LOCK";
+            case LockableResource.STATE_RESERVED:
+                return "RESERVE";
+            case LockableResource.STATE_QUEUED:
+                return "QUEUE";
+            default:
+                if (LockableResource.STATE_LOCKED.equals(previous)) {
+                    return "UNLOCK";
+                } else if (LockableResource.STATE_RESERVED.equals(previous)) {
+                    return "UNRESERVE";
+                }
+                return "UNQUEUE";
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** One change, resource changes have a state, queue changes the context id. */
+    private static final class Change {
+        private long revision;
+        private final long timestamp = System.currentTimeMillis();
+        private final String type;
+        private final String resource;
+        private final String context;
+        private final String state;
+        private final String previous;
+
+        Change(
+                final String type,
+                final String resource,
+                @CheckForNull final String context,
+                @CheckForNull final String state,
+                @CheckForNull final String previous) {
+            this.type = type;
+            this.resource = resource;
+            this.context = context;
+            this.state = state;
+            this.previous = previous;
+        }
+
+        JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            json.put("revision", this.revision);
+            json.put("timestamp", this.timestamp);
+            json.put("type", this.type);
+            // queue entries wait for resources described by the lock step
+            json.put(this.context == null ? "resource" : "resources", this.resource);
+            json.put("context", this.context);
+            json.put("state", this.state);
+            json.put("previous", this.previous);
+            return json;
+        }
+    }
+}
@@ -30,24 +30,27 @@ public final class FreeDeadJobs {
     public static void freePostMortemResources() {
 
         LockableResourcesManager lrm = LockableResourcesManager.get();
-        synchronized (lrm.syncResources) {
-            List<LockableResource> orphan = new ArrayList<>();
-            LOG.log(Level.FINE, "lockable-resources-plugin free post mortem task run");
-            for (LockableResource resource : lrm.getResources()) {
-                if (resource.getBuild() != null && !resource.getBuild().isInProgress()) {
-                    orphan.add(resource);
-                }
+        List<LockableResource> orphan = new ArrayList<>();
+        LOG.log(Level.FINE, "lockable-resources-plugin free post mortem task run");
+        // the read-only snapshot, recycle() takes the locks of the resources by itself
+        for (LockableResource copy : lrm.getResourcesSnapshot()) {
+            if (copy.getBuild() == null || copy.getBuild().isInProgress()) {
+                continue;
             }
-
-            for (LockableResource resource : orphan) {
-                LOG.log(
-                        Level.INFO,
-                        "lockable-resources-plugin reset resource "
-                                + resource.getName()
-                                + " due post mortem job: "
-                                + resource.getBuildName());
-                resource.recycle();
+            LockableResource resource = lrm.fromName(copy.getName());
+            if (resource != null) {
+                orphan.add(resource);
             }
         }
+
+        for (LockableResource resource : orphan) {
+            LOG.log(
+                    Level.INFO,
+                    "lockable-resources-plugin reset resource "
+                            + resource.getName()
+                            + " due post mortem job: "
+                            + resource.getBuildName());
+            resource.recycle();
+        }
     }
 }
@@ -1,5 +1,6 @@
 package org.jenkins.plugins.lockableresources;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.EnvVars;
@@ -9,6 +10,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -55,14 +57,34 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
         List<LockableResource> available = null;
         LinkedHashMap<String, List<LockableResourceProperty>> lockedResources = new LinkedHashMap<>();
         LockableResourcesManager lrm = LockableResourcesManager.get();
-        synchronized (lrm.syncResources) {
-            step.validate();
 
-            LockableResourcesManager.printLogs("Trying to acquire lock on [" + step + "]", Level.FINE, LOGGER, logger);
+        // Everything what does not touch the shared state is done outside of the global lock,
+        // so other lock() calls do not need to wait for it (build log, flow node, build action)
+        step.validate();
+
+        LockableResourcesManager.printLogs("Trying to acquire lock on [" + step + "]", Level.FINE, LOGGER, logger);
+
+        getContext().get(FlowNode.class).addAction(new PauseAction("Lock"));
 
-            getContext().get(FlowNode.class).addAction(new PauseAction("Lock"));
+        List<String> resourceNames = new ArrayList<>();
+        for (LockStepResource resource : step.getResources()) {
+            resourceNames.add(resource.resource != null ? resource.resource : "N/A");
+        }
+        LockedResourcesBuildAction.addLog(run, resourceNames, "try", step.toString());
+
+        // existing free resources requested by name are locked with their own (striped) locks only
+        final List<String> plainNames = this.getPlainResourceNames();
+        final List<LockableResource> lockedFree = plainNames == null ? null : lrm.tryLockFree(plainNames, run);
+        if (lockedFree != null) {
+            lrm.onLockAcquired(Collections.emptyList(), lockedFree, 0);
+            for (LockableResource resource : lockedFree) {
+                lockedResources.put(resource.getName(), resource.getProperties());
+            }
+            LockStepExecution.proceed(lockedResources, getContext(), step.toString(), step.variable);
+            return false;
+        }
 
-            List<String> resourceNames = new ArrayList<>();
+        synchronized (lrm.syncResources) {
             for (LockStepResource resource : step.getResources()) {
                 List<String> resources = new ArrayList<>();
                 if (resource.resource != null) {
@@ -74,19 +96,16 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
                                 logger);
                     }
                     resources.add(resource.resource);
-                    resourceNames.addAll(resources);
-                } else {
-                    resourceNames.add("N/A");
                 }
                 resourceHolderList.add(new LockableResourcesStruct(resources, resource.label, resource.quantity));
             }
 
-            LockedResourcesBuildAction.addLog(run, resourceNames, "try", step.toString());
-
             // determine if there are enough resources available to proceed
             available = lrm.getAvailableResources(resourceHolderList, logger, resourceSelectStrategy);
             if (available == null || available.isEmpty()) {
-                LOGGER.fine("No available resources: " + available);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("No available resources: " + available);
+                }
                 onLockFailed(logger, resourceHolderList);
                 return false;
             }
@@ -94,23 +113,43 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
             final boolean lockFailed = (lrm.lock(available, run) == false);
 
             if (lockFailed) {
-                // this here is very defensive code, and you will probably never hit it. (hopefully)
-                LOGGER.warning("Internal program error: Can not lock resources: " + available);
+                // taken by tryLockFree() of another build meanwhile, so wait like any other blocked step
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Can not lock resources, they have been locked meanwhile: " + available);
+                }
                 onLockFailed(logger, resourceHolderList);
-                return true;
+                return false;
             }
+            lrm.onLockAcquired(resourceHolderList, available, 0);
 
             // since LockableResource contains transient variables, they cannot be correctly serialized
             // hence we use their unique resource names and properties
             for (LockableResource resource : available) {
                 lockedResources.put(resource.getName(), resource.getProperties());
             }
-            LockStepExecution.proceed(lockedResources, getContext(), step.toString(), step.variable);
         }
 
+        // the resources are locked by this build now, nobody else can take them,
+        // so the body can be started without holding the lock
+        LockStepExecution.proceed(lockedResources, getContext(), step.toString(), step.variable);
+
         return false;
     }
 
+    // ---------------------------------------------------------------------------
+    /** Returns the resource names of the step, when all its resources are requested by name. */
+    @CheckForNull
+    private List<String> getPlainResourceNames() {
+        List<String> names = new ArrayList<>();
+        for (LockStepResource resource : step.getResources()) {
+            if (resource.resource == null || (resource.label != null && !resource.label.isEmpty())) {
+                return null;
+            }
+            names.add(resource.resource);
+        }
+        return names;
+    }
+
     // ---------------------------------------------------------------------------
     /**
      * Executed when the lock() function fails. No available resources, or we failed to lock available
@@ -35,15 +35,21 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.apache.commons.lang3.StringUtils;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkins.plugins.lockableresources.util.LabelExpressionCache;
+import org.jenkins.plugins.lockableresources.util.ResourceMatchScripts;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.kohsuke.accmod.Restricted;
@@ -58,7 +64,15 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     private static final Logger LOGGER = Logger.getLogger(LockableResource.class.getName());
     public static final int NOT_QUEUED = 0;
-    private static final int QUEUE_TIMEOUT = 60;
+
+    /** States returned by {@link #getState()}. */
+    public static final String STATE_FREE = "FREE";
+    public static final String STATE_QUEUED = "QUEUED";
+    public static final String STATE_LOCKED = "LOCKED";
+    public static final String STATE_RESERVED = "RESERVED";
+
+    /** Seconds, after which a queued resource (not locked yet) is freed again. See {@link QueuingTimeout}. */
+    static final int QUEUE_TIMEOUT = SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_QUEUE_TIMEOUT, 60);
     public static final String GROOVY_LABEL_MARKER = "groovy:";
 
     private final String name;
@@ -70,6 +84,9 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     private transient String labels = null;
 
     private List<String> labelsAsList = new ArrayList<>();
+
+    /** Cached atoms of {@link #labelsAsList}. Invalidated in {@link #setLabels(String)}. */
+    private transient Set<LabelAtom> labelAtoms = null;
     private String reservedBy = null;
     private Date reservedTimestamp = null;
     private String note = "";
@@ -105,6 +122,33 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
     private transient boolean isNode = false;
 
+    /**
+     * Manager, where this resource is registered. It is used to keep the manager indexes up to date,
+     * when the resource is changed directly. {@code null} for resources, which are not (yet) managed.
+     */
+    private transient LockableResourcesManager manager = null;
+
+    /** Position of this resource in the manager, used to keep the index look-ups in resource order. */
+    private transient long indexPosition = 0;
+
+    /** Free state of this resource, as counted in the label counters of the manager. */
+    private transient boolean countedAsFree = false;
+
+    /** Source of {@link #revision}, unique over all resources. */
+    private static final AtomicLong REVISIONS = new AtomicLong();
+
+    /**
+     * Changed whenever the data seen by the resource match scripts (labels, description, note) are
+     * changed. Used to reuse the script results, see {@link LockableResourcesManager#getResourcesMatchingScript}.
+     */
+    private transient volatile long revision = REVISIONS.incrementAndGet();
+
+    /** Version of the resources snapshot this copy belongs to, see {@link #copyState(long)}. */
+    private transient long snapshotVersion = 0;
+
+    /** State last reported into the {@link ChangeFeed}, guarded by the feed. */
+    private transient String feedState = null;
+
     /**
      * Was used within the initial implementation of Pipeline functionality using {@link LockStep},
      * but became deprecated once several resources could be locked at once. See queuedContexts in
@@ -144,6 +188,8 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         if (properties == null) {
             properties = new ArrayList<>();
         }
+        // transient fields are not initialized by XStream
+        this.revision = REVISIONS.incrementAndGet();
         this.repairLabels();
         return this;
     }
@@ -175,6 +221,147 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         isNode = b;
     }
 
+    // ---------------------------------------------------------------------------
+    /** Called by {@link LockableResourcesManager} when this resource is registered or removed. */
+    void setManager(@CheckForNull LockableResourcesManager manager, long indexPosition) {
+        this.manager = manager;
+        this.indexPosition = indexPosition;
+    }
+
+    // ---------------------------------------------------------------------------
+    long getIndexPosition() {
+        return this.indexPosition;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Detached copy of the persisted state. Used by {@link LockableResourcesManager} to write the
+     * state in background without holding {@link LockableResourcesManager#syncResources}.
+     */
+    LockableResource copyPersistedState() {
+        LockableResource copy = new LockableResource(this.name);
+        copy.description = this.description;
+        copy.labelsAsList = new ArrayList<>(this.labelsAsList);
+        copy.reservedBy = this.reservedBy;
+        copy.reservedTimestamp = this.reservedTimestamp == null ? null : new Date(this.reservedTimestamp.getTime());
+        copy.note = this.note;
+        copy.stolen = this.stolen;
+        copy.ephemeral = this.ephemeral;
+        copy.properties = new ArrayList<>(this.properties);
+        copy.queueItemId = this.queueItemId;
+        copy.queueItemProject = this.queueItemProject;
+        copy.buildExternalizableId = this.buildExternalizableId;
+        copy.queuingStarted = this.queuingStarted;
+        copy.queuedContexts = new ArrayList<>(this.queuedContexts);
+        return copy;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Detached copy of the whole state, including the current build. Used by {@link
+     * LockableResourcesManager#getResourcesSnapshot()} for the read-only views.
+     *
+     * @param snapshotVersion Version of the snapshot, in which the copy has been taken.
+     */
+    LockableResource copyState(final long snapshotVersion) {
+        LockableResource copy = this.copyPersistedState();
+        copy.build = this.build;
+        copy.isNode = this.isNode;
+        copy.snapshotVersion = snapshotVersion;
+        return copy;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the version of {@link LockableResourcesManager#getResourcesSnapshot()}, in which this
+     * copy has been taken. The copy is reused by the next snapshots until the resource is changed,
+     * so the resources with a version newer than N have been changed since version N. Always 0 for
+     * the registered resources.
+     */
+    @Restricted(NoExternalUse.class)
+    public long getSnapshotVersion() {
+        return this.snapshotVersion;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns {@link #STATE_RESERVED}, {@link #STATE_LOCKED}, {@link #STATE_QUEUED} or {@link
+     * #STATE_FREE}. Does not resolve the build, a resource locked by an unknown build counts as locked.
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public String getState() {
+        if (this.reservedBy != null) {
+            return STATE_RESERVED;
+        } else if (this.build != null || this.buildExternalizableId != null) {
+            return STATE_LOCKED;
+        } else if (this.isQueued()) {
+            return STATE_QUEUED;
+        }
+        return STATE_FREE;
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    String getFeedState() {
+        return this.feedState;
+    }
+
+    // ---------------------------------------------------------------------------
+    void setFeedState(@CheckForNull final String feedState) {
+        this.feedState = feedState;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * The same as {@link #isFree()}, but does not resolve the build. A resource locked by an unknown
+     * build counts as locked.
+     */
+    boolean isFreeState() {
+        return this.build == null
+                && this.buildExternalizableId == null
+                && this.reservedBy == null
+                && this.queueItemId == NOT_QUEUED;
+    }
+
+    // ---------------------------------------------------------------------------
+    boolean isCountedAsFree() {
+        return this.countedAsFree;
+    }
+
+    // ---------------------------------------------------------------------------
+    void setCountedAsFree(boolean countedAsFree) {
+        this.countedAsFree = countedAsFree;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns revision of the data seen by the resource match scripts. */
+    long getRevision() {
+        return this.revision;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** The data seen by the resource match scripts has been changed. */
+    private void bumpRevision() {
+        this.revision = REVISIONS.incrementAndGet();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Inform the manager, that this resource may be free now, so the queued items can see it. */
+    private void freed() {
+        if (this.manager != null && !this.isLocked() && !this.isReserved() && !this.stolen) {
+            this.manager.onResourceFreed(this);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Inform the manager, that the (persisted) state of this resource has been changed. */
+    private void stateChanged() {
+        if (this.manager != null) {
+            this.manager.onResourceChanged(this);
+        }
+    }
+
     @Exported
     public String getName() {
         return name;
@@ -188,6 +375,8 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setDescription(@Nullable String description) {
         this.description = Util.fixNull(description);
+        this.bumpRevision();
+        this.stateChanged();
     }
 
     @Exported
@@ -198,11 +387,14 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setNote(@Nullable String note) {
         this.note = Util.fixNull(note);
+        this.bumpRevision();
+        this.stateChanged();
     }
 
     @DataBoundSetter
     public void setEphemeral(boolean ephemeral) {
         this.ephemeral = ephemeral;
+        this.stateChanged();
     }
 
     @Exported
@@ -234,13 +426,22 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     public void setLabels(@Nullable String labels) {
         labels = Util.fixNull(labels);
         // todo use label parser from Jenkins.Label to allow the same syntax
-        this.labelsAsList = new ArrayList<>();
+        final List<String> oldLabels = this.labelsAsList;
+        List<String> newLabels = new ArrayList<>();
         for (String label : labels.split("\\s+")) {
             if (label == null || label.isEmpty()) {
                 continue;
             }
-            this.labelsAsList.add(label);
+            newLabels.add(label);
         }
+        this.labelsAsList = newLabels;
+        this.labelAtoms = null;
+        this.bumpRevision();
+
+        if (this.manager != null) {
+            this.manager.onLabelsChanged(this, oldLabels);
+        }
+        this.stateChanged();
     }
 
     /**
@@ -290,13 +491,23 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
             return true;
         }
 
-        final Label labelExpression = Label.parseExpression(candidate);
-        Set<LabelAtom> atomLabels = new HashSet<>();
-        for (String label : this.getLabelsAsList()) {
-            atomLabels.add(new LabelAtom(label));
-        }
+        final Label labelExpression = LabelExpressionCache.parse(candidate);
+        return LabelExpressionCache.matches(labelExpression, this.getLabelAtoms());
+    }
 
-        return labelExpression.matches(atomLabels);
+    // ----------------------------------------------------------------------------
+    /** Returns labels of this resource as atoms. Cached until the labels are changed. */
+    @NonNull
+    private Set<LabelAtom> getLabelAtoms() {
+        Set<LabelAtom> atoms = this.labelAtoms;
+        if (atoms == null) {
+            atoms = new HashSet<>();
+            for (String label : this.getLabelsAsList()) {
+                atoms.add(new LabelAtom(label));
+            }
+            this.labelAtoms = atoms;
+        }
+        return atoms;
     }
 
     // ----------------------------------------------------------------------------
@@ -318,6 +529,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setProperties(@Nullable List<LockableResourceProperty> properties) {
         this.properties = (properties == null ? new ArrayList<>() : properties);
+        this.stateChanged();
     }
 
     /**
@@ -332,13 +544,14 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @Restricted(NoExternalUse.class)
     public boolean scriptMatches(@NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params)
             throws ExecutionException {
-        Binding binding = new Binding(params);
+        // own copy of the parameters, the binding writes into it and the resources are checked in parallel
+        Binding binding = new Binding(params == null ? new HashMap<>() : new HashMap<>(params));
         binding.setVariable("resourceName", name);
         binding.setVariable("resourceDescription", description);
         binding.setVariable("resourceLabels", this.getLabelsAsList());
         binding.setVariable("resourceNote", note);
         try {
-            Object result = script.evaluate(Jenkins.get().getPluginManager().uberClassLoader, binding, null);
+            Object result = ResourceMatchScripts.evaluate(script, binding);
             if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine("Checked resource "
                         + name
@@ -364,6 +577,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     @DataBoundSetter
     public void setReservedTimestamp(@Nullable final Date reservedTimestamp) {
         this.reservedTimestamp = reservedTimestamp == null ? null : new Date(reservedTimestamp.getTime());
+        this.stateChanged();
     }
 
     @Exported
@@ -415,25 +629,43 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     public boolean isQueued() {
-        this.validateQueuingTimeout();
         return queueItemId != NOT_QUEUED;
     }
 
     // returns True if queued by any other task than the given one
     public boolean isQueued(long taskId) {
-        this.validateQueuingTimeout();
         return queueItemId != NOT_QUEUED && queueItemId != taskId;
     }
 
     public boolean isQueuedByTask(long taskId) {
-        this.validateQueuingTimeout();
         return queueItemId == taskId;
     }
 
     public void unqueue() {
+        if (queueItemId == NOT_QUEUED && queueItemProject == null && queuingStarted == 0) {
+            // nothing changes, skip the hooks (called for each resource on lock and unlock)
+            return;
+        }
+        final String oldProject = queueItemProject;
         queueItemId = NOT_QUEUED;
         queueItemProject = null;
         queuingStarted = 0;
+        this.stateChanged();
+        if (this.manager != null) {
+            this.manager.onQueuedChanged(this, oldProject);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Unqueue this resource, when it is queued longer than {@link #QUEUE_TIMEOUT}.
+     *
+     * @param now Current time in seconds.
+     */
+    void unqueueIfExpired(long now) {
+        if (queuingStarted > 0 && now - queuingStarted > QUEUE_TIMEOUT) {
+            unqueue();
+        }
     }
 
     @Exported
@@ -494,6 +726,14 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         return build;
     }
 
+    // ---------------------------------------------------------------------------
+    /** Returns the id of the locking build, without loading the build. */
+    @CheckForNull
+    @Restricted(NoExternalUse.class)
+    public String getBuildExternalizableId() {
+        return this.buildExternalizableId;
+    }
+
     // ---------------------------------------------------------------------------
     @Exported
     public String getBuildName() {
@@ -513,6 +753,10 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
             this.buildExternalizableId = null;
             setReservedTimestamp(null);
         }
+        this.stateChanged();
+        if (lockedBy == null) {
+            this.freed();
+        }
     }
 
     public Task getTask() {
@@ -525,39 +769,37 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     }
 
     public long getQueueItemId() {
-        this.validateQueuingTimeout();
         return queueItemId;
     }
 
     public String getQueueItemProject() {
-        this.validateQueuingTimeout();
         return this.queueItemProject;
     }
 
     public void setQueued(long queueItemId) {
-        this.queueItemId = queueItemId;
-        this.queuingStarted = System.currentTimeMillis() / 1000;
+        this.setQueued(queueItemId, this.queueItemProject);
     }
 
     public void setQueued(long queueItemId, String queueProjectName) {
-        this.setQueued(queueItemId);
+        final String oldProject = this.queueItemProject;
+        this.queueItemId = queueItemId;
+        this.queuingStarted = System.currentTimeMillis() / 1000;
         this.queueItemProject = queueProjectName;
-    }
-
-    private void validateQueuingTimeout() {
-        if (queuingStarted > 0) {
-            long now = System.currentTimeMillis() / 1000;
-            if (now - queuingStarted > QUEUE_TIMEOUT) unqueue();
+        this.stateChanged();
+        if (this.manager != null) {
+            this.manager.onQueuedChanged(this, oldProject);
         }
     }
 
     @DataBoundSetter
     public void setReservedBy(String userName) {
         this.reservedBy = Util.fixEmptyAndTrim(userName);
+        this.stateChanged();
     }
 
     public void setStolen() {
         this.stolen = true;
+        this.stateChanged();
     }
 
     @Exported
@@ -574,6 +816,8 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
         this.setReservedBy(null);
         this.setReservedTimestamp(null);
         this.stolen = false;
+        this.stateChanged();
+        this.freed();
     }
 
     public void reset() {
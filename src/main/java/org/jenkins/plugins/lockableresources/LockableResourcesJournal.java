@@ -0,0 +1,225 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+// -----------------------------------------------------------------------------
+/**
+ * Append-only change journal of the {@link LockableResourcesManager} state.
+ *
+ * <p>Instead of writing the whole manager (all resources and the whole queue) on each state change,
+ * only the changed resources and queue operations are appended here. The journal is compacted into
+ * the regular XML file from time to time and on Jenkins start, after it has been replayed.
+ *
+ * <p>Each entry is stored as XStream XML (the same converters like the XML file) prefixed by its
+ * length. A partially written entry at the end (Jenkins crashed during write) is ignored.
+ */
+final class LockableResourcesJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(LockableResourcesJournal.class.getName());
+
+    private final File file;
+
+    /** Amount of entries in the journal file. */
+    private int size = -1;
+
+    // ---------------------------------------------------------------------------
+    LockableResourcesJournal(@NonNull final File file) {
+        this.file = file;
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    File getFile() {
+        return this.file;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Amount of entries written since the last compaction. */
+    int size() {
+        if (this.size < 0) {
+            this.size = this.count();
+        }
+        return this.size;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Counts the entries without parsing them. */
+    private int count() {
+        int count = 0;
+        if (!this.file.exists()) {
+            return count;
+        }
+        try (InputStream in = Files.newInputStream(this.file.toPath());
+                DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            while (true) {
+                final int length = data.readInt();
+                if (length < 0) {
+                    break;
+                }
+                data.readFully(new byte[length]);
+                count++;
+            }
+        } catch (EOFException e) {
+            // end of the journal (or incomplete entry)
+            LOGGER.log(Level.FINEST, "End of " + this.file + " reached", e);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + this.file, e);
+        }
+        return count;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Appends given entries at the end of the journal, returns the amount of written bytes. */
+    long append(@NonNull final List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        final int currentSize = this.size();
+        final long written;
+        try (OutputStream out = Files.newOutputStream(
+                        this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+            for (Entry entry : entries) {
+                final byte[] bytes = Jenkins.XSTREAM2.toXML(entry).getBytes(StandardCharsets.UTF_8);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+            written = data.size();
+        }
+        this.size = currentSize + entries.size();
+        return written;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Reads all (complete) entries. */
+    @NonNull
+    List<Entry> read() {
+        List<Entry> entries = new ArrayList<>();
+        if (!this.file.exists()) {
+            return entries;
+        }
+        try (InputStream in = Files.newInputStream(this.file.toPath());
+                DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            while (true) {
+                final int length;
+                try {
+                    length = data.readInt();
+                } catch (EOFException eof) {
+                    break; // regular end of the journal
+                }
+                if (length < 0) {
+                    LOGGER.warning("Corrupted entry in " + this.file + ", the rest of the journal is ignored.");
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                data.readFully(bytes);
+                Object entry = Jenkins.XSTREAM2.fromXML(new String(bytes, StandardCharsets.UTF_8));
+                if (entry instanceof Entry) {
+                    entries.add((Entry) entry);
+                }
+            }
+        } catch (EOFException e) {
+            LOGGER.warning("Incomplete entry at the end of " + this.file + ", it is ignored.");
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + this.file + ", the rest of the journal is ignored.", e);
+        }
+        return entries;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Removes the journal. Called once its content has been written into the XML file. */
+    void reset() {
+        try {
+            Files.deleteIfExists(this.file.toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + this.file, e);
+        }
+        this.size = 0;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** One change of the manager state. */
+    static final class Entry {
+
+        enum Type {
+            /** Resource has been added or changed, {@code resource} holds the current state. */
+            RESOURCE,
+            /** Resource with {@code name} has been removed. */
+            REMOVE_RESOURCE,
+            /** {@code context} has been queued behind the entry with id {@code after} (null: first). */
+            QUEUE,
+            /** Queued context with {@code name} (id) has been removed from queue. */
+            UNQUEUE
+        }
+
+        final Type type;
+
+        @CheckForNull
+        final String name;
+
+        @CheckForNull
+        final LockableResource resource;
+
+        @CheckForNull
+        final QueuedContextStruct context;
+
+        @CheckForNull
+        final String after;
+
+        private Entry(
+                Type type,
+                @CheckForNull String name,
+                @CheckForNull LockableResource resource,
+                @CheckForNull QueuedContextStruct context,
+                @CheckForNull String after) {
+            this.type = type;
+            this.name = name;
+            this.resource = resource;
+            this.context = context;
+            this.after = after;
+        }
+
+        static Entry resource(@NonNull final LockableResource resource) {
+            return new Entry(Type.RESOURCE, resource.getName(), resource, null, null);
+        }
+
+        static Entry removeResource(@NonNull final String name) {
+            return new Entry(Type.REMOVE_RESOURCE, name, null, null, null);
+        }
+
+        static Entry queue(@NonNull final QueuedContextStruct context, @CheckForNull final QueuedContextStruct after) {
+            return new Entry(Type.QUEUE, context.getId(), null, context, after == null ? null : after.getId());
+        }
+
+        static Entry unqueue(@NonNull final QueuedContextStruct context) {
+            return new Entry(Type.UNQUEUE, context.getId(), null, null, null);
+        }
+    }
+}
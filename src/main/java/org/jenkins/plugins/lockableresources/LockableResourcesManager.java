@@ -8,44 +8,80 @@
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 package org.jenkins.plugins.lockableresources;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.WriterWrapper;
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.BulkChange;
 import hudson.Extension;
+import hudson.ExtensionList;
 import hudson.Util;
+import hudson.XmlFile;
 import hudson.console.ModelHyperlinkNote;
+import hudson.init.Terminator;
 import hudson.model.Descriptor;
+import hudson.model.Label;
 import hudson.model.Run;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
 import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
 import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkins.plugins.lockableresources.util.LabelExpressionCache;
+import org.jenkins.plugins.lockableresources.util.PluginMetrics;
+import org.jenkins.plugins.lockableresources.util.ResourceMatchScripts;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.kohsuke.accmod.Restricted;
@@ -56,23 +92,208 @@ import org.kohsuke.stapler.StaplerRequest;
 @Extension
 public class LockableResourcesManager extends GlobalConfiguration {
 
-    /** Object to synchronized operations over LRM */
+    /**
+     * Object to synchronized operations over LRM. Guards the structure (the resources list and its
+     * indexes), the queue and the caches. The lock state of the resources is guarded by the
+     * {@link #resourceLocks} stripes in addition, see {@link ResourceLocks} for the lock order.
+     */
     public static final transient Object syncResources = new Object();
 
+    /** Amount of {@link #resourceLocks} stripes. */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Per resource (striped) locks. Each change of the lock state (locked, reserved, queued) holds the
+     * stripes of the changed resources, so {@link #tryLockFree} can lock free resources without
+     * {@link #syncResources}.
+     */
+    private final transient ResourceLocks resourceLocks = new ResourceLocks(LOCK_STRIPES);
+
+    /** Guards the publication of {@link #resourcesSnapshot}. A leaf monitor, see {@link ResourceLocks}. */
+    private final transient Object syncSnapshot = new Object();
+
     private List<LockableResource> resources;
-    private transient Cache<Long, List<LockableResource>> cachedCandidates =
-            CacheBuilder.newBuilder().expireAfterWrite(5, TimeUnit.MINUTES).build();
+
+    /**
+     * Name index over {@link #resources}. Kept in step with every structural change of the list, so
+     * {@link #fromName(String)} does not need to walk all resources. Changed under {@link
+     * #syncResources}, read by {@link #tryLockFree} without it. Not persisted.
+     */
+    private transient volatile Map<String, LockableResource> resourcesByName = new ConcurrentHashMap<>();
+
+    /**
+     * Inverted label index over {@link #resources}. Maps each label (atom) to the resources which
+     * carry it. Updated by {@link LockableResource#setLabels(String)} and by add / remove. Not
+     * persisted.
+     */
+    private transient Map<String, Set<LockableResource>> resourcesByLabel = new HashMap<>();
+
+    /**
+     * Queued resources by the project, which has queued them (see {@link
+     * LockableResource#getQueueItemProject()}), in resource order. Updated by the resources itself.
+     */
+    private transient Map<String, Set<LockableResource>> queuedResourcesByProject = new ConcurrentHashMap<>();
+
+    /** All queued resources, checked periodically for the queuing timeout. See {@link QueuingTimeout}. */
+    private transient Set<LockableResource> queuedResources = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Amount of assigned and free resources per label, as {@code {assigned, free}}. Updated by the
+     * resource hooks, guarded by itself. See {@link #getLabelCounters()}.
+     */
+    private transient Map<String, int[]> labelCounters = new LinkedHashMap<>();
+
+    /** Published read-only copy of the resources, see {@link #getResourcesSnapshot()}. */
+    private transient volatile ResourcesSnapshot resourcesSnapshot = null;
+
+    /**
+     * The indexes are being rebuilt, {@link #reindexResources()} publishes the whole snapshot at its
+     * end. Guarded by {@link #syncSnapshot}.
+     */
+    private transient boolean snapshotOutdated = true;
+
+    /**
+     * Resources changed since {@link #resourcesSnapshot} has been published. Their copies are replaced
+     * on the next read, so a change costs O(1) and many changes share one copy of the snapshot. Guarded
+     * by {@link #syncSnapshot}.
+     */
+    private final transient Set<LockableResource> unpublishedResources =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Set when {@link #unpublishedResources} is not empty, so the readers need no lock otherwise. */
+    private transient volatile boolean snapshotDirty = false;
+
+    /** Changes done through the list returned by {@link #getResources()}, see {@link ResourcesView}. */
+    private transient int resourcesModifications = 0;
+
+    /** Value of {@link #resourcesModifications} when the indexes were (re)built. */
+    private transient int indexedModifications = -1;
+
+    /** Increased whenever a resource is added or removed, see {@link #getStructureVersion()}. */
+    private final transient AtomicLong structureVersion = new AtomicLong();
+
+    /** Next position assigned to a registered resource, see {@link LockableResource#getIndexPosition()}. */
+    private transient long nextIndexPosition = 0;
+
+    private static final long CANDIDATES_CACHE_SIZE =
+            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_CANDIDATES_CACHE_SIZE, 100_000L);
+
+    /**
+     * Candidates (resources matching the label or script) of the queue items, by queue item id. The
+     * cached lists are not changed anymore, they are replaced. Bounded by the total amount of stored
+     * candidates, see {@link Constants#SYSTEM_PROPERTY_CANDIDATES_CACHE_SIZE}.
+     */
+    private transient Cache<Long, List<LockableResource>> cachedCandidates = Caffeine.newBuilder()
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .maximumWeight(CANDIDATES_CACHE_SIZE)
+            .<Long, List<LockableResource>>weigher((queueItemId, candidates) -> candidates.size() + 1)
+            .evictionListener(this::onCandidatesEvicted)
+            .recordStats()
+            .build();
+
+    /** Queue items by the names of the resources in their {@link #cachedCandidates}. */
+    private transient Map<String, Set<Long>> cachedCandidatesByResource = new ConcurrentHashMap<>();
+
+    /**
+     * Queue items with no {@link #cachedCandidates} by the label keys of their requirement (see {@link
+     * QueueWakeupIndex#getLabelKeys(String)}). The candidates contain busy resources too, so an empty
+     * list changes only when a resource got a matching label meanwhile. Such a resource invalidates
+     * them, when it is freed.
+     */
+    private transient Map<String, Set<Long>> emptyCachedCandidatesByKey = new ConcurrentHashMap<>();
+
+    /** Keys of the queue items in {@link #emptyCachedCandidatesByKey}, to remove them again. */
+    private transient Map<Long, Set<String>> emptyCachedCandidatesKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Queue items with no {@link #cachedCandidates}, which can not be indexed by label (groovy scripts,
+     * label expressions with negation). They are evaluated again when any resource is freed.
+     */
+    private transient Set<Long> emptyCachedCandidates = ConcurrentHashMap.newKeySet();
+
+    private static final int SCRIPT_RESULT_CACHE_SIZE =
+            SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_SCRIPT_RESULT_CACHE_SIZE, 100);
+
+    /**
+     * Results of the resource match scripts by (script, parameters). The results are stored by
+     * {@link LockableResource#getRevision()}, so changed resources are evaluated again. Shared by all
+     * queue items with the same script and parameters, like matrix configurations.
+     */
+    private transient Cache<ResourceMatchScripts.ResultKey, Map<Long, Boolean>> scriptResults = Caffeine.newBuilder()
+                    .maximumSize(SCRIPT_RESULT_CACHE_SIZE)
+                    .expireAfterWrite(5, TimeUnit.MINUTES)
+                    .build();
+    /** Recent state changes, see {@link #getChangeFeed()}. */
+    private transient ChangeFeed changeFeed =
+            new ChangeFeed(SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_CHANGE_FEED_SIZE, 1000));
+    /** Usage statistics, see {@link #getStatistics()}. */
+    private transient ResourceStatistics statistics = new ResourceStatistics(
+            TimeUnit.HOURS.toMillis(SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_STATISTICS_WINDOW, 24)),
+            System.currentTimeMillis());
+
     private static final Logger LOGGER = Logger.getLogger(LockableResourcesManager.class.getName());
 
     /**
      * Only used when this lockable resource is tried to be locked by {@link LockStep}, otherwise
      * (freestyle builds) regular Jenkins queue is used.
+     *
+     * <p>Persisted form of {@link #queue}. It is read on load and written in the save snapshots, the
+     * running manager works with {@link #queue} only.
      */
     private List<QueuedContextStruct> queuedContexts = new ArrayList<>();
 
+    /** Queued contexts, see {@link #queuedContexts}. */
+    private transient QueuedContexts queue = new QueuedContexts();
+
+    /** Unlock requests waiting for {@link #syncResources}, see {@link #unlockNames(Map)}. */
+    private final transient Queue<UnlockRequest> pendingUnlocks = new ConcurrentLinkedQueue<>();
+
+    /** Waiting contexts by the resources (names and labels) they are waiting for. Not persisted. */
+    private transient QueueWakeupIndex queueWakeupIndex = new QueueWakeupIndex();
+
     // cache to enable / disable saving lockable-resources state
     private int enableSave = -1;
 
+    // cache to enable / disable the change journal, see SYSTEM_PROPERTY_ENABLE_SAVE_JOURNAL
+    private transient int enableJournal = -1;
+
+    private final transient int journalCompactionThreshold =
+            SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_JOURNAL_COMPACTION_THRESHOLD, 1000);
+
+    /** Change journal, created on first use. */
+    private transient LockableResourcesJournal journal = null;
+
+    /** Resources changed since last save. Filled by {@link LockableResource} itself. */
+    private transient Set<LockableResource> changedResources = ConcurrentHashMap.newKeySet();
+
+    /** Structural changes (removed resources, queue operations) since last save. */
+    private transient List<LockableResourcesJournal.Entry> pendingJournalEntries = new ArrayList<>();
+
+    /** Set when the change can not be expressed in the journal. The next save writes the whole file. */
+    private transient volatile boolean fullSaveRequired = true;
+
+    /** Amount of entries in the journal, including the entries not yet written by the background writer. */
+    private transient int journalSize = -1;
+
+    /**
+     * Delay in milliseconds to coalesce the saves into one background write. {@code 0} (default) writes
+     * synchronously on each {@link #save()}.
+     */
+    private final transient long saveInterval =
+            SystemProperties.getLong(Constants.SYSTEM_PROPERTY_SAVE_INTERVAL, 0L);
+
+    /**
+     * Writes the snapshots in the order they have been taken. Used only when {@link #saveInterval} is
+     * set, created on first use and shut down with Jenkins, see {@link #flushOnShutdown()}.
+     */
+    private transient ExecutorService saveWriter = null;
+
+    /** Set by {@link #save()}, cleared once the snapshot has been taken. */
+    private final transient AtomicBoolean saveRequested = new AtomicBoolean(false);
+
+    /** Set while a background save is scheduled. */
+    private final transient AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
     private static final int enabledBlockedCount =
             SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_PRINT_BLOCKED_RESOURCE, 2);
     private static final int enabledCausesCount =
@@ -89,9 +310,68 @@ public class LockableResourcesManager extends GlobalConfiguration {
     }
 
     // ---------------------------------------------------------------------------
-    /** Get all resources Includes declared, ephemeral and node resources */
+    /**
+     * Get all resources Includes declared, ephemeral and node resources
+     *
+     * <p>The returned list is a live view. Changes done through it are counted, so the name and label
+     * indexes are rebuilt on next access.
+     */
     public List<LockableResource> getResources() {
-        return this.resources;
+        return new ResourcesView();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Live view of {@link #resources} returned by {@link #getResources()}. The list is public and might
+     * be changed directly (by other plugins or scripts). Each change (also replacing an element by
+     * {@link #set(int, LockableResource)}) increases {@link #resourcesModifications} and publishes
+     * the resources snapshot again, so the readers see it without locking.
+     */
+    private final class ResourcesView extends AbstractList<LockableResource> implements RandomAccess {
+
+        @Override
+        public LockableResource get(final int index) {
+            return resources.get(index);
+        }
+
+        @Override
+        public int size() {
+            return resources.size();
+        }
+
+        @Override
+        public LockableResource set(final int index, final LockableResource element) {
+            synchronized (syncResources) {
+                resourcesModifications++;
+                structureVersion.incrementAndGet();
+                final LockableResource old = resources.set(index, element);
+                publishSnapshot();
+                return old;
+            }
+        }
+
+        @Override
+        public void add(final int index, final LockableResource element) {
+            synchronized (syncResources) {
+                resourcesModifications++;
+                structureVersion.incrementAndGet();
+                modCount++;
+                resources.add(index, element);
+                publishSnapshot();
+            }
+        }
+
+        @Override
+        public LockableResource remove(final int index) {
+            synchronized (syncResources) {
+                resourcesModifications++;
+                structureVersion.incrementAndGet();
+                modCount++;
+                final LockableResource old = resources.remove(index);
+                publishSnapshot();
+                return old;
+            }
+        }
     }
 
     // ---------------------------------------------------------------------------
@@ -106,6 +386,240 @@ public class LockableResourcesManager extends GlobalConfiguration {
         }
     }
 
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns a read-only copy of all resources, used by the UI and the REST API. The copies are
+     * detached from this manager and must not be changed.
+     *
+     * <p>The snapshot is published by the changes themselves (see {@link #publishResource} and {@link
+     * #publishSnapshot()}), so reading never takes the {@link #syncResources} lock.
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public List<LockableResource> getResourcesSnapshot() {
+        final ResourcesSnapshot snapshot = this.currentSnapshot();
+        return snapshot == null ? Collections.emptyList() : snapshot.resources;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the version, in which a resource has been removed from the snapshot last time. Readers
+     * comparing {@link LockableResource#getSnapshotVersion()} of the copies need to start from scratch,
+     * when they have seen an older version.
+     */
+    @Restricted(NoExternalUse.class)
+    public long getResourcesSnapshotRemovedVersion() {
+        final ResourcesSnapshot snapshot = this.currentSnapshot();
+        return snapshot == null ? 0 : snapshot.removedVersion;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Publishes new snapshot with copies of all resources. Called after the indexes has been rebuilt. */
+    private void publishSnapshot() {
+        synchronized (this.syncResources) {
+            if (this.indexedModifications != this.resourcesModifications) {
+                // the list has been changed directly, the reindex publishes it
+                this.reindexResources();
+                return;
+            }
+            final List<LockableResource> indexed = new ArrayList<>(this.resources.size());
+            for (LockableResource r : this.resources) {
+                // duplicate names are not indexed (and not shown)
+                if (r.getName() != null && this.resourcesByName.get(r.getName()) == r) {
+                    indexed.add(r);
+                }
+            }
+            synchronized (this.syncSnapshot) {
+                final ResourcesSnapshot snapshot = this.resourcesSnapshot;
+                // start with the time, so the versions of a previous Jenkins run are older ones
+                final long version = snapshot == null ? System.currentTimeMillis() : snapshot.version + 1;
+                final LockableResource[] copies = new LockableResource[indexed.size()];
+                for (int i = 0; i < copies.length; i++) {
+                    copies[i] = indexed.get(i).copyState(version);
+                }
+                this.snapshotOutdated = false;
+                this.unpublishedResources.clear();
+                this.snapshotDirty = false;
+                this.resourcesSnapshot = new ResourcesSnapshot(version, version, copies, indexed);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Marks the copy of the changed *resource* as outdated. The copy is replaced by the next reader, see
+     * {@link #currentSnapshot()}, so locking k resources does not copy the whole snapshot k times.
+     */
+    private void publishResource(final LockableResource resource) {
+        // not syncResources, the resource might be changed while holding its stripe only
+        synchronized (this.syncSnapshot) {
+            if (this.resourcesSnapshot == null || this.snapshotOutdated) {
+                // the next full publish copies it anyway
+                return;
+            }
+            this.unpublishedResources.add(resource);
+            this.snapshotDirty = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the published snapshot. When resources have been changed since, it is published once
+     * again first, with fresh copies of all changed resources.
+     */
+    @CheckForNull
+    private ResourcesSnapshot currentSnapshot() {
+        if (!this.snapshotDirty) {
+            return this.resourcesSnapshot;
+        }
+        synchronized (this.syncSnapshot) {
+            final ResourcesSnapshot snapshot = this.resourcesSnapshot;
+            if (snapshot != null && !this.snapshotOutdated && !this.unpublishedResources.isEmpty()) {
+                final long version = snapshot.version + 1;
+                final LockableResource[] copies = snapshot.copies.clone();
+                for (LockableResource resource : this.unpublishedResources) {
+                    final int position = snapshot.indexOf(resource);
+                    // not published yet (see publishAdded()) or removed meanwhile
+                    if (position >= 0) {
+                        copies[position] = resource.copyState(version);
+                    }
+                }
+                this.resourcesSnapshot =
+                        new ResourcesSnapshot(version, snapshot.removedVersion, copies, snapshot.positions);
+            }
+            this.unpublishedResources.clear();
+            this.snapshotDirty = false;
+            return this.resourcesSnapshot;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Publishes new snapshot with the copy of the *resource* added at the end. */
+    private void publishAdded(final LockableResource resource) {
+        synchronized (this.syncSnapshot) {
+            final ResourcesSnapshot snapshot = this.resourcesSnapshot;
+            final int size = snapshot == null ? 0 : snapshot.copies.length;
+            if (snapshot != null
+                    && !this.snapshotOutdated
+                    && (size == 0 || snapshot.positions[size - 1] < resource.getIndexPosition())) {
+                final long version = snapshot.version + 1;
+                final LockableResource[] copies = Arrays.copyOf(snapshot.copies, size + 1);
+                final long[] positions = Arrays.copyOf(snapshot.positions, size + 1);
+                copies[size] = resource.copyState(version);
+                positions[size] = resource.getIndexPosition();
+                this.resourcesSnapshot =
+                        new ResourcesSnapshot(version, snapshot.removedVersion, copies, positions);
+                return;
+            }
+        }
+        // outside of the leaf monitor, it takes syncResources
+        this.publishSnapshot();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Publishes new snapshot without the *removed* resources. Must be called before they are unindexed. */
+    private void publishRemoved(final List<LockableResource> removed) {
+        synchronized (this.syncSnapshot) {
+            final ResourcesSnapshot snapshot = this.resourcesSnapshot;
+            if (snapshot == null || this.snapshotOutdated || removed.isEmpty()) {
+                return;
+            }
+            final boolean[] drop = new boolean[snapshot.copies.length];
+            int dropped = 0;
+            for (LockableResource resource : removed) {
+                final int position = snapshot.indexOf(resource);
+                if (position >= 0 && !drop[position]) {
+                    drop[position] = true;
+                    dropped++;
+                }
+            }
+            final LockableResource[] copies = new LockableResource[snapshot.copies.length - dropped];
+            final long[] positions = new long[copies.length];
+            int j = 0;
+            for (int i = 0; i < drop.length; i++) {
+                if (!drop[i]) {
+                    copies[j] = snapshot.copies[i];
+                    positions[j] = snapshot.positions[i];
+                    j++;
+                }
+            }
+            final long version = snapshot.version + 1;
+            this.resourcesSnapshot = new ResourcesSnapshot(version, version, copies, positions);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the recent changes of the resource states and of the queue. Each change increases the
+     * revision of the feed, clients can wait for the changes since the revision they have seen.
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public ChangeFeed getChangeFeed() {
+        return this.changeFeed;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the usage statistics of the resources and labels (in memory only, since Jenkins start). */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public ResourceStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Immutable list of resource copies, see {@link #getResourcesSnapshot()}. The copies are in the
+     * order of {@link LockableResource#getIndexPosition()} (the order of the resources list), so the
+     * copy of a resource is found by binary search.
+     */
+    private static final class ResourcesSnapshot {
+        private final long version;
+        private final long removedVersion;
+        private final LockableResource[] copies;
+        /** {@link LockableResource#getIndexPosition()} of the resource of each copy. */
+        private final long[] positions;
+
+        private final List<LockableResource> resources;
+
+        ResourcesSnapshot(
+                final long version,
+                final long removedVersion,
+                final LockableResource[] copies,
+                final long[] positions) {
+            this.version = version;
+            this.removedVersion = removedVersion;
+            this.copies = copies;
+            this.positions = positions;
+            this.resources = Collections.unmodifiableList(Arrays.asList(copies));
+        }
+
+        ResourcesSnapshot(
+                final long version,
+                final long removedVersion,
+                final LockableResource[] copies,
+                final List<LockableResource> resources) {
+            this(version, removedVersion, copies, indexPositions(resources));
+        }
+
+        private static long[] indexPositions(final List<LockableResource> resources) {
+            final long[] positions = new long[resources.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = resources.get(i).getIndexPosition();
+            }
+            return positions;
+        }
+
+        /** Position of the copy of given (registered) resource, or -1. */
+        int indexOf(final LockableResource resource) {
+            final int position = Arrays.binarySearch(this.positions, resource.getIndexPosition());
+            if (position < 0 || !this.copies[position].getName().equals(resource.getName())) {
+                return -1;
+            }
+            return position;
+        }
+    }
+
     // ---------------------------------------------------------------------------
     /** Get declared resources, means only defined in config file (xml or JCaC yaml). */
     @Restricted(NoExternalUse.class)
@@ -160,6 +674,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             }
 
             this.resources = mergedResources;
+            this.reindexResources();
         }
     }
 
@@ -167,10 +682,22 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /** Get all resources used by project. */
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getResourcesFromProject(String fullName) {
+        // make sure the index is up to date
+        this.getResourcesByName();
+        return this.getQueuedResourcesOf(fullName);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns resources queued by the *project*, in resource order. */
+    @NonNull
+    private List<LockableResource> getQueuedResourcesOf(@CheckForNull final String project) {
+        final Set<LockableResource> queued = project == null ? null : this.queuedResourcesByProject.get(project);
+        if (queued == null) {
+            return new ArrayList<>();
+        }
         List<LockableResource> matching = new ArrayList<>();
-        for (LockableResource r : this.getResources()) {
-            String rName = r.getQueueItemProject();
-            if (rName != null && rName.equals(fullName)) {
+        for (LockableResource r : queued) {
+            if (project.equals(r.getQueueItemProject())) {
                 matching.add(r);
             }
         }
@@ -187,15 +714,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
             return false;
         }
 
-        synchronized (this.syncResources) {
-            for (LockableResource r : this.getResources()) {
-                if (r != null && r.isValidLabel(label)) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return !this.getResourcesWithLabel(label).isEmpty();
     }
 
     // ---------------------------------------------------------------------------
@@ -203,18 +722,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @NonNull
     @Restricted(NoExternalUse.class)
     public Set<String> getAllLabels() {
-        Set<String> labels = new HashSet<>();
-        for (LockableResource r : this.getReadOnlyResources()) {
-            if (r == null) {
-                continue;
-            }
-            List<String> toAdd = r.getLabelsAsList();
-            if (toAdd.isEmpty()) {
-                continue;
-            }
-            labels.addAll(toAdd);
+        synchronized (this.syncResources) {
+            return new HashSet<>(this.getResourcesByLabel().keySet());
         }
-        return labels;
     }
 
     // ---------------------------------------------------------------------------
@@ -263,8 +773,130 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @NonNull
     @Restricted(NoExternalUse.class)
     public List<LockableResource> getResourcesWithLabel(final String label) {
+        final String candidate = Util.fixEmptyAndTrim(label);
+        if (candidate == null) {
+            return new ArrayList<>();
+        }
         synchronized (this.syncResources) {
-            return _getResourcesWithLabel(label, this.getResources());
+            return this.findResourcesWithLabel(candidate);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Resolves the *label* (single label or label expression) over the label index. The result is
+     * the same as calling {@link LockableResource#isValidLabel(String)} on each resource, but the
+     * costs depends on the amount of matching resources and not on the amount of all resources.
+     * Negations ({@code !label}) are the exception, they need to visit all resources.
+     */
+    @NonNull
+    private List<LockableResource> findResourcesWithLabel(@NonNull final String label) {
+        final Map<String, Set<LockableResource>> index = this.getResourcesByLabel();
+
+        // the label might be used as it is (see LockableResource.labelsContain())
+        Set<LockableResource> found = new HashSet<>(index.getOrDefault(label, Collections.emptySet()));
+
+        final Label expression;
+        try {
+            expression = LabelExpressionCache.parse(label);
+        } catch (IllegalArgumentException e) {
+            if (found.isEmpty()) {
+                throw e;
+            }
+            // not an expression, but a plain (existing) label
+            return sortByIndexPosition(found);
+        }
+
+        found.addAll(expression.accept(new LabelIndexVisitor(index, this.resources), null));
+        return sortByIndexPosition(found);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Keeps the order of resources, like they are stored in {@link #resources}. */
+    @NonNull
+    private static List<LockableResource> sortByIndexPosition(@NonNull final Set<LockableResource> found) {
+        List<LockableResource> list = new ArrayList<>(found);
+        list.sort(Comparator.comparingLong(LockableResource::getIndexPosition));
+        return list;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Evaluates a label expression by set algebra over the label index. */
+    private static final class LabelIndexVisitor extends LabelVisitor<Set<LockableResource>, Void> {
+        private final Map<String, Set<LockableResource>> index;
+        private final List<LockableResource> all;
+
+        LabelIndexVisitor(final Map<String, Set<LockableResource>> index, final List<LockableResource> all) {
+            this.index = index;
+            this.all = all;
+        }
+
+        @Override
+        public Set<LockableResource> onAtom(LabelAtom a, Void param) {
+            return index.getOrDefault(a.getName(), Collections.emptySet());
+        }
+
+        @Override
+        public Set<LockableResource> onParen(LabelExpression.Paren p, Void param) {
+            return p.base.accept(this, param);
+        }
+
+        @Override
+        public Set<LockableResource> onNot(LabelExpression.Not p, Void param) {
+            return complement(p.base.accept(this, param));
+        }
+
+        @Override
+        public Set<LockableResource> onAnd(LabelExpression.And p, Void param) {
+            return intersection(p.lhs.accept(this, param), p.rhs.accept(this, param));
+        }
+
+        @Override
+        public Set<LockableResource> onOr(LabelExpression.Or p, Void param) {
+            return union(p.lhs.accept(this, param), p.rhs.accept(this, param));
+        }
+
+        @Override
+        public Set<LockableResource> onIff(LabelExpression.Iff p, Void param) {
+            // a <-> b == (a && b) || (!a && !b)
+            Set<LockableResource> lhs = p.lhs.accept(this, param);
+            Set<LockableResource> rhs = p.rhs.accept(this, param);
+            return union(intersection(lhs, rhs), complement(union(lhs, rhs)));
+        }
+
+        @Override
+        public Set<LockableResource> onImplies(LabelExpression.Implies p, Void param) {
+            // a -> b == !a || b
+            return union(complement(p.lhs.accept(this, param)), p.rhs.accept(this, param));
+        }
+
+        private Set<LockableResource> complement(final Set<LockableResource> set) {
+            Set<LockableResource> result = new HashSet<>();
+            for (LockableResource r : this.all) {
+                if (!set.contains(r)) {
+                    result.add(r);
+                }
+            }
+            return result;
+        }
+
+        private static Set<LockableResource> intersection(
+                final Set<LockableResource> lhs, final Set<LockableResource> rhs) {
+            final Set<LockableResource> smaller = lhs.size() <= rhs.size() ? lhs : rhs;
+            final Set<LockableResource> bigger = smaller == lhs ? rhs : lhs;
+            Set<LockableResource> result = new HashSet<>();
+            for (LockableResource r : smaller) {
+                if (bigger.contains(r)) {
+                    result.add(r);
+                }
+            }
+            return result;
+        }
+
+        private static Set<LockableResource> union(final Set<LockableResource> lhs, final Set<LockableResource> rhs) {
+            Set<LockableResource> result = new HashSet<>(lhs);
+            result.addAll(rhs);
+            return result;
         }
     }
 
@@ -278,77 +910,350 @@ public class LockableResourcesManager extends GlobalConfiguration {
             return found;
         }
 
-        for (LockableResource r : resources) {
-            if (r != null && r.isValidLabel(label)) found.add(r);
+        for (LockableResource r : resources) {
+            if (r != null && r.isValidLabel(label)) found.add(r);
+        }
+        return found;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns a list of resources matching by given *script*.
+     *
+     * <p>The results are reused for the same script and parameters, as long as the resource labels,
+     * description and note are not changed. The script approval is checked on each call, see {@link
+     * ResourceMatchScripts#resultKey}.
+     *
+     * @param script Script
+     * @param params Additional parameters
+     * @return List of the matching resources
+     * @throws ExecutionException Script execution failed for one of the resources. It is considered
+     *     as a fatal failure since the requirement list may be incomplete
+     * @since 2.0
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public List<LockableResource> getResourcesMatchingScript(
+            @NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params) throws ExecutionException {
+        final ResourceMatchScripts.ResultKey key =
+                SCRIPT_RESULT_CACHE_SIZE > 0 ? ResourceMatchScripts.resultKey(script, params) : null;
+        synchronized (this.syncResources) {
+            if (key == null) {
+                // compiled once, checked in parallel
+                return ResourceMatchScripts.filter(this.resources, r -> r.scriptMatches(script, params));
+            }
+
+            final Map<Long, Boolean> known = this.scriptResults.getIfPresent(key);
+            // filled in parallel, contains only the current revisions
+            final Map<Long, Boolean> results = new ConcurrentHashMap<>();
+            final List<LockableResource> found = ResourceMatchScripts.filter(this.resources, r -> {
+                final long revision = r.getRevision();
+                Boolean matches = known == null ? null : known.get(revision);
+                if (matches == null) {
+                    matches = r.scriptMatches(script, params);
+                }
+                results.put(revision, matches);
+                return matches;
+            });
+            this.scriptResults.put(key, results);
+            return found;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Forget all known script results, see {@link #getResourcesMatchingScript}. */
+    @Restricted(NoExternalUse.class)
+    public void invalidateScriptResults() {
+        this.scriptResults.invalidateAll();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns resource matched by name. Returns null in case, the resource does not exists. */
+    @CheckForNull
+    @Restricted(NoExternalUse.class)
+    public LockableResource fromName(@CheckForNull String resourceName) {
+        resourceName = Util.fixEmpty(resourceName);
+
+        if (resourceName != null) {
+
+            synchronized (this.syncResources) {
+                return this.getResourcesByName().get(resourceName);
+            }
+        } else {
+            LOGGER.warning("Internal failure, fromName is empty or null:" + getStack());
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------
+    @Restricted(NoExternalUse.class)
+    public List<LockableResource> fromNames(@Nullable final List<String> names) {
+        if (names == null) {
+            return null;
+        }
+        return fromNames(names, false);
+    }
+
+    // ---------------------------------------------------------------------------
+    @Restricted(NoExternalUse.class)
+    public List<LockableResource> fromNames(final List<String> names, final boolean createResource) {
+        List<LockableResource> list = new ArrayList<>();
+        // one lock for all names, fromName() and createResource() do reenter it
+        synchronized (this.syncResources) {
+            for (String name : names) {
+                // be sure it exists
+                if (createResource) this.createResource(name);
+                LockableResource r = this.fromName(name);
+                if (r != null) // this is probably bug, but nobody know
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns a version, which is increased whenever a resource is added, removed or replaced. Callers
+     * caching resource instances can compare it without taking the {@link #syncResources} lock, and
+     * look the resources up again only when it has been changed.
+     */
+    @Restricted(NoExternalUse.class)
+    public long getStructureVersion() {
+        return this.structureVersion.get();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the name index. The list returned by {@link #getResources()} is public and might be
+     * changed directly (by other plugins or scripts), so the index is rebuilt, when the list has been
+     * changed through it since.
+     */
+    @NonNull
+    private Map<String, LockableResource> getResourcesByName() {
+        if (this.indexedModifications != this.resourcesModifications) {
+            this.reindexResources();
+        }
+        return this.resourcesByName;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the label index. See also {@link #getResourcesByName()}. */
+    @NonNull
+    private Map<String, Set<LockableResource>> getResourcesByLabel() {
+        if (this.indexedModifications != this.resourcesModifications) {
+            this.reindexResources();
+        }
+        return this.resourcesByLabel;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Rebuilds the name and label index from scratch. */
+    private void reindexResources() {
+        synchronized (this.syncResources) {
+            if (this.resources == null) {
+                this.resources = new ArrayList<>();
+            }
+            synchronized (this.syncSnapshot) {
+                this.snapshotOutdated = true;
+            }
+            // no lock state change meanwhile, the counters are rebuilt from it
+            try (ResourceLocks.Held held = this.resourceLocks.lockAll()) {
+                // release the old ones, some of them might be removed now
+                for (LockableResource r : this.resourcesByName.values()) {
+                    r.setManager(null, 0);
+                }
+                Map<String, LockableResource> index = new ConcurrentHashMap<>();
+                this.resourcesByLabel = new HashMap<>();
+                synchronized (this.labelCounters) {
+                    this.labelCounters.clear();
+                }
+                this.queuedResourcesByProject = new ConcurrentHashMap<>();
+                this.queuedResources = ConcurrentHashMap.newKeySet();
+                this.nextIndexPosition = 0;
+                for (LockableResource r : this.resources) {
+                    // the first one wins, the same as the former linear search
+                    if (r.getName() != null && index.putIfAbsent(r.getName(), r) == null) {
+                        this.indexResource(r);
+                    }
+                }
+                this.resourcesByName = index;
+                this.indexedModifications = this.resourcesModifications;
+                // we do not know what has been changed
+                this.fullSaveRequired = true;
+                this.publishSnapshot();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Adds the resource into label index and connects it with this manager. */
+    private void indexResource(final LockableResource resource) {
+        this.structureVersion.incrementAndGet();
+        resource.setManager(this, this.nextIndexPosition++);
+        this.changeFeed.register(resource);
+        for (String label : resource.getLabelsAsList()) {
+            this.resourcesByLabel.computeIfAbsent(label, k -> new HashSet<>()).add(resource);
+        }
+        this.countLabels(resource, resource.getLabelsAsList(), 1);
+        this.onQueuedChanged(resource, null);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Removes the resource from label index and disconnects it from this manager. */
+    private void unindexResource(final LockableResource resource) {
+        this.structureVersion.incrementAndGet();
+        this.removeFromQueuedIndex(resource, resource.getQueueItemProject());
+        this.countLabels(resource, resource.getLabelsAsList(), -1);
+        resource.setManager(null, 0);
+        this.removeFromLabelIndex(resource, resource.getLabelsAsList());
+    }
+
+    // ---------------------------------------------------------------------------
+    private void removeFromLabelIndex(final LockableResource resource, @Nullable final List<String> labels) {
+        if (labels == null) {
+            return;
+        }
+        for (String label : labels) {
+            Set<LockableResource> set = this.resourcesByLabel.get(label);
+            if (set != null && set.remove(resource) && set.isEmpty()) {
+                this.resourcesByLabel.remove(label);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by registered resources, when their persisted state has been changed. */
+    void onResourceChanged(final LockableResource resource) {
+        this.publishResource(resource);
+        this.changeFeed.resourceChanged(resource);
+        this.statistics.resourceChanged(resource);
+        this.countFreeState(resource);
+        if (this.isJournalEnabled()) {
+            // no lock here, the resource might be changed by read operations (queue timeout)
+            this.changedResources.add(resource);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by registered resources, when they are queued or unqueued. */
+    void onQueuedChanged(final LockableResource resource, @CheckForNull final String oldProject) {
+        final String newProject = resource.getQueueItemProject();
+        if (oldProject != null && !oldProject.equals(newProject)) {
+            this.removeFromQueuedIndex(resource, oldProject);
+        }
+        if (!resource.isQueued()) {
+            this.queuedResources.remove(resource);
+            return;
+        }
+        this.queuedResources.add(resource);
+        if (newProject != null) {
+            this.queuedResourcesByProject.compute(newProject, (project, queued) -> {
+                if (queued == null) {
+                    queued = new ConcurrentSkipListSet<>(Comparator.comparingLong(LockableResource::getIndexPosition));
+                }
+                queued.add(resource);
+                return queued;
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void removeFromQueuedIndex(final LockableResource resource, @CheckForNull final String project) {
+        this.queuedResources.remove(resource);
+        if (project != null) {
+            this.queuedResourcesByProject.computeIfPresent(project, (name, queued) -> {
+                queued.remove(resource);
+                return queued.isEmpty() ? null : queued;
+            });
         }
-        return found;
     }
 
     // ---------------------------------------------------------------------------
-    /**
-     * Returns a list of resources matching by given *script*.
-     *
-     * @param script Script
-     * @param params Additional parameters
-     * @return List of the matching resources
-     * @throws ExecutionException Script execution failed for one of the resources. It is considered
-     *     as a fatal failure since the requirement list may be incomplete
-     * @since 2.0
-     */
-    @NonNull
-    @Restricted(NoExternalUse.class)
-    public List<LockableResource> getResourcesMatchingScript(
-            @NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params) throws ExecutionException {
-        List<LockableResource> found = new ArrayList<>();
+    /** Unqueue the resources queued longer than the queuing timeout. Called by {@link QueuingTimeout}. */
+    void unqueueExpired() {
+        if (this.queuedResources.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis() / 1000;
         synchronized (this.syncResources) {
-            for (LockableResource r : this.resources) {
-                if (r.scriptMatches(script, params)) found.add(r);
+            for (LockableResource resource : this.queuedResources) {
+                resource.unqueueIfExpired(now);
             }
         }
-        return found;
     }
 
     // ---------------------------------------------------------------------------
-    /** Returns resource matched by name. Returns null in case, the resource does not exists. */
-    @CheckForNull
-    @Restricted(NoExternalUse.class)
-    public LockableResource fromName(@CheckForNull String resourceName) {
-        resourceName = Util.fixEmpty(resourceName);
-
-        if (resourceName != null) {
+    /** Called by the {@link LockableResource#setLabels(String)} of registered resources. */
+    void onLabelsChanged(final LockableResource resource, @Nullable final List<String> oldLabels) {
+        synchronized (this.syncResources) {
+            if (this.resourcesByName.get(resource.getName()) != resource) {
+                return; // not (more) managed by us
+            }
+            this.removeFromLabelIndex(resource, oldLabels);
+            for (String label : resource.getLabelsAsList()) {
+                this.resourcesByLabel.computeIfAbsent(label, k -> new HashSet<>()).add(resource);
+            }
+            this.countLabels(resource, oldLabels, -1);
+            this.countLabels(resource, resource.getLabelsAsList(), 1);
+        }
+    }
 
-            synchronized (this.syncResources) {
-                for (LockableResource r : this.getResources()) {
-                    if (resourceName.equals(r.getName())) return r;
+    // ---------------------------------------------------------------------------
+    /** Adds (*delta* 1) or removes (*delta* -1) the *resource* to / from the counters of the *labels*. */
+    private void countLabels(final LockableResource resource, @Nullable final List<String> labels, final int delta) {
+        if (labels == null) {
+            return;
+        }
+        synchronized (this.labelCounters) {
+            if (delta > 0) {
+                resource.setCountedAsFree(resource.isFreeState());
+            }
+            final int free = resource.isCountedAsFree() ? delta : 0;
+            for (String label : labels) {
+                final int[] counter = this.labelCounters.computeIfAbsent(label, k -> new int[2]);
+                counter[0] += delta;
+                counter[1] += free;
+                if (counter[0] <= 0) {
+                    this.labelCounters.remove(label);
                 }
             }
-        } else {
-            LOGGER.warning("Internal failure, fromName is empty or null:" + getStack());
         }
-        return null;
     }
 
     // ---------------------------------------------------------------------------
-    @Restricted(NoExternalUse.class)
-    public List<LockableResource> fromNames(@Nullable final List<String> names) {
-        if (names == null) {
-            return null;
+    /** Updates the free counters of the resource labels, when the resource has been locked, freed ... */
+    private void countFreeState(final LockableResource resource) {
+        synchronized (this.labelCounters) {
+            final boolean free = resource.isFreeState();
+            if (free == resource.isCountedAsFree()) {
+                return;
+            }
+            resource.setCountedAsFree(free);
+            for (String label : resource.getLabelsAsList()) {
+                final int[] counter = this.labelCounters.get(label);
+                if (counter != null) {
+                    counter[1] += free ? 1 : -1;
+                }
+            }
         }
-        return fromNames(names, false);
     }
 
     // ---------------------------------------------------------------------------
+    /**
+     * Returns amount of assigned and free resources per label as {@code {assigned, free}}. The
+     * counters are kept up to date on each change, so it does not iterate the resources.
+     */
+    @NonNull
     @Restricted(NoExternalUse.class)
-    public List<LockableResource> fromNames(final List<String> names, final boolean createResource) {
-        List<LockableResource> list = new ArrayList<>();
-        for (String name : names) {
-            // be sure it exists
-            if (createResource) this.createResource(name);
-            LockableResource r = this.fromName(name);
-            if (r != null) // this is probably bug, but nobody know
-            list.add(r);
+    public Map<String, int[]> getLabelCounters() {
+        this.getResourcesByName();
+        Map<String, int[]> copy = new LinkedHashMap<>();
+        synchronized (this.labelCounters) {
+            for (Map.Entry<String, int[]> entry : this.labelCounters.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().clone());
+            }
         }
-        return list;
+        return copy;
     }
 
     // ---------------------------------------------------------------------------
@@ -420,10 +1325,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
      * completely available. Called as a helper from methods that unlock/unreserve/reset (or
      * indirectly - recycle) stuff.
      *
-     * <p>NOTE for people using LR or LRM methods directly to add some abilities in their pipelines
-     * that are not provided by plugin: the `cachedCandidates` is an LRM concept, so if you tell a
-     * resource (LR instance) directly to unlock/unreserve, it has no idea to clean itself from this
-     * cache, and may be considered busy in queuing for some time afterwards.
+     * <p>Only the cache entries containing the resource are touched, see {@link
+     * #cachedCandidatesByResource}. Resources registered in this manager call it by themselves, when
+     * they are unlocked or unreserved directly (see {@link #onResourceFreed(LockableResource)}).
      */
     public boolean uncacheIfFreeing(LockableResource candidate, boolean unlocking, boolean unreserving) {
         if (candidate.isLocked() && !unlocking) return false;
@@ -433,22 +1337,142 @@ public class LockableResourcesManager extends GlobalConfiguration {
         // this flag is cleared during un-reservation.
         if ((candidate.isReserved() || candidate.isStolen()) && !unreserving) return false;
 
-        if (cachedCandidates.size() == 0) return true;
+        this.uncacheCandidatesOf(candidate);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns statistics (hit ratio, evictions, load time) of the cached queue item candidates. Can
+     * be checked in the script console: {@code LockableResourcesManager.get().getCachedCandidatesStats()}
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public CacheStats getCachedCandidatesStats() {
+        return this.cachedCandidates.stats();
+    }
+
+    // ---------------------------------------------------------------------------
+    private boolean isRegistered(final LockableResource resource) {
+        return this.getResourcesByName().get(resource.getName()) == resource;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by registered resources, when they became free (not locked, not reserved). */
+    void onResourceFreed(final LockableResource resource) {
+        this.uncacheCandidatesOf(resource);
+    }
 
-        // Per https://guava.dev/releases/19.0/api/docs/com/google/common/cache/Cache.html
-        // "Modifications made to the map directly affect the cache."
-        // so it is both a way for us to iterate the cache and to edit
-        // the lists it stores per queue.
-        Map<Long, List<LockableResource>> cachedCandidatesMap = cachedCandidates.asMap();
-        for (Map.Entry<Long, List<LockableResource>> entry : cachedCandidatesMap.entrySet()) {
-            Long queueItemId = entry.getKey();
-            List<LockableResource> candidates = entry.getValue();
-            if (candidates != null && (candidates.size() == 0 || candidates.contains(candidate))) {
-                cachedCandidates.invalidate(queueItemId);
+    // ---------------------------------------------------------------------------
+    /**
+     * Remove all cached candidates containing the *resource*, and the empty ones the resource might
+     * match now.
+     */
+    private void uncacheCandidatesOf(final LockableResource resource) {
+        final Set<Long> queueItemIds = this.cachedCandidatesByResource.remove(resource.getName());
+        if (queueItemIds != null) {
+            for (Long queueItemId : queueItemIds) {
+                this.uncacheCandidates(queueItemId);
+            }
+        }
+        if (!this.emptyCachedCandidatesByKey.isEmpty()) {
+            for (String key : QueueWakeupIndex.getKeys(resource)) {
+                final Set<Long> empty = this.emptyCachedCandidatesByKey.get(key);
+                if (empty != null) {
+                    for (Long queueItemId : empty) {
+                        this.uncacheCandidates(queueItemId);
+                    }
+                }
             }
         }
+        for (Long queueItemId : this.emptyCachedCandidates) {
+            this.uncacheCandidates(queueItemId);
+        }
+    }
 
-        return true;
+    // ---------------------------------------------------------------------------
+    private void uncacheCandidates(final Long queueItemId) {
+        final List<LockableResource> candidates = this.cachedCandidates.asMap().remove(queueItemId);
+        if (candidates != null) {
+            this.unindexCandidates(queueItemId, candidates);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Store the *candidates* of the queue item and index them by resource.
+     *
+     * @param label Label expression of the requirement, null when the candidates are selected by script.
+     */
+    private void cacheCandidates(
+            final long queueItemId, final List<LockableResource> candidates, @CheckForNull final String label) {
+        final List<LockableResource> replaced = this.cachedCandidates.asMap().put(queueItemId, candidates);
+        if (replaced != null) {
+            this.unindexCandidates(queueItemId, replaced);
+        }
+        this.indexCandidates(queueItemId, candidates, label);
+    }
+
+    // ---------------------------------------------------------------------------
+    private void indexCandidates(
+            final long queueItemId, final List<LockableResource> candidates, @CheckForNull final String label) {
+        if (candidates.isEmpty()) {
+            final Set<String> keys = label == null ? null : QueueWakeupIndex.getLabelKeys(label);
+            if (keys == null) {
+                this.emptyCachedCandidates.add(queueItemId);
+            } else {
+                this.emptyCachedCandidatesKeys.put(queueItemId, keys);
+                for (String key : keys) {
+                    this.emptyCachedCandidatesByKey
+                            .computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
+                            .add(queueItemId);
+                }
+            }
+        }
+        for (LockableResource resource : candidates) {
+            this.cachedCandidatesByResource.compute(resource.getName(), (name, ids) -> {
+                if (ids == null) {
+                    ids = ConcurrentHashMap.newKeySet();
+                }
+                ids.add(queueItemId);
+                return ids;
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Keeps the indexes of {@link #cachedCandidates} in sync with expired and evicted entries. Called
+     * synchronously by the cache, explicitly removed entries are unindexed by the caller.
+     */
+    private void onCandidatesEvicted(
+            @CheckForNull final Long queueItemId,
+            @CheckForNull final List<LockableResource> candidates,
+            final RemovalCause cause) {
+        if (queueItemId == null || candidates == null) {
+            return;
+        }
+        this.unindexCandidates(queueItemId, candidates);
+    }
+
+    // ---------------------------------------------------------------------------
+    private void unindexCandidates(final Long queueItemId, final List<LockableResource> candidates) {
+        this.emptyCachedCandidates.remove(queueItemId);
+        final Set<String> keys = this.emptyCachedCandidatesKeys.remove(queueItemId);
+        if (keys != null) {
+            for (String key : keys) {
+                this.emptyCachedCandidatesByKey.computeIfPresent(key, (k, ids) -> {
+                    ids.remove(queueItemId);
+                    return ids.isEmpty() ? null : ids;
+                });
+            }
+        }
+        for (LockableResource resource : candidates) {
+            this.cachedCandidatesByResource.computeIfPresent(resource.getName(), (name, ids) -> {
+                ids.remove(queueItemId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
     }
 
     // ---------------------------------------------------------------------------
@@ -472,70 +1496,126 @@ public class LockableResourcesManager extends GlobalConfiguration {
             Map<String, Object> params,
             Logger log)
             throws ExecutionException {
-        List<LockableResource> selected = new ArrayList<>();
+        final List<LockableResource> selected;
+        final long waiting = System.nanoTime();
         synchronized (this.syncResources) {
-            if (!checkCurrentResourcesStatus(selected, queueItemProject, queueItemId, log)) {
-                // The project has another buildable item waiting -> bail out
+            final long acquired = System.nanoTime();
+            try {
+                selected = this.tryQueueLocked(requiredResources, queueItemId, queueItemProject, number, params, log);
+            } finally {
+                PluginMetrics.syncHeld(acquired - waiting, System.nanoTime() - acquired);
+            }
+        }
+        PluginMetrics.tryQueue(selected != null);
+        return selected;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** {@link #tryQueue} while holding {@link #syncResources}. */
+    @CheckForNull
+    private List<LockableResource> tryQueueLocked(
+            LockableResourcesStruct requiredResources,
+            long queueItemId,
+            String queueItemProject,
+            int number,
+            Map<String, Object> params,
+            Logger log)
+            throws ExecutionException {
+        List<LockableResource> selected = new ArrayList<>();
+        if (!checkCurrentResourcesStatus(selected, queueItemProject, queueItemId, log)) {
+            // The project has another buildable item waiting -> bail out
+            if (log.isLoggable(Level.FINEST)) {
                 log.log(
                         Level.FINEST,
                         "{0} has another build waiting resources." + " Waiting for it to proceed first.",
                         new Object[] {queueItemProject});
-                return null;
             }
+            return null;
+        }
 
-            final SecureGroovyScript systemGroovyScript;
+        final SecureGroovyScript systemGroovyScript;
+        try {
+            systemGroovyScript = requiredResources.getResourceMatchScript();
+        } catch (Descriptor.FormException x) {
+            throw new ExecutionException(x);
+        }
+        boolean candidatesByScript = (systemGroovyScript != null);
+        List<LockableResource> candidates = requiredResources.required; // default candidates
+
+        if (candidatesByScript || (requiredResources.label != null && !requiredResources.label.isEmpty())) {
+
+            final boolean[] loaded = {false};
             try {
-                systemGroovyScript = requiredResources.getResourceMatchScript();
-            } catch (Descriptor.FormException x) {
-                throw new ExecutionException(x);
-            }
-            boolean candidatesByScript = (systemGroovyScript != null);
-            List<LockableResource> candidates = requiredResources.required; // default candidates
-
-            if (candidatesByScript || (requiredResources.label != null && !requiredResources.label.isEmpty())) {
-
-                candidates = cachedCandidates.getIfPresent(queueItemId);
-                if (candidates != null) {
-                    candidates.retainAll(this.resources);
-                } else {
-                    candidates = (systemGroovyScript == null)
-                            ? getResourcesWithLabel(requiredResources.label)
-                            : getResourcesMatchingScript(systemGroovyScript, params);
-                    cachedCandidates.put(queueItemId, candidates);
+                // loaded by the cache, so the load time is part of its statistics
+                candidates = cachedCandidates.get(queueItemId, id -> {
+                    loaded[0] = true;
+                    try {
+                        return (systemGroovyScript == null)
+                                ? getResourcesWithLabel(requiredResources.label)
+                                : getResourcesMatchingScript(systemGroovyScript, params);
+                    } catch (ExecutionException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof ExecutionException) {
+                    throw (ExecutionException) e.getCause();
                 }
+                throw e;
             }
 
-            for (LockableResource rs : candidates) {
-                if (number != 0 && (selected.size() >= number)) break;
-                if (!rs.isReserved() && !rs.isLocked() && !rs.isQueued()) selected.add(rs);
+            final String label = candidatesByScript ? null : requiredResources.label;
+            if (loaded[0]) {
+                indexCandidates(queueItemId, candidates, label);
+            } else if (!candidates.stream().allMatch(this::isRegistered)) {
+                // some of the candidates has been removed meanwhile
+                candidates = candidates.stream().filter(this::isRegistered).collect(Collectors.toList());
+                cacheCandidates(queueItemId, candidates, label);
             }
+        }
 
-            // if did not get wanted amount or did not get all
-            final int required_amount;
-            if (candidatesByScript && candidates.isEmpty()) {
-                /*
-                 * If the groovy script does not return any candidates, it means nothing is needed, even if a
-                 * higher amount is specified. A valid use case is a Matrix job, when not all configurations
-                 * need resources.
-                 */
-                required_amount = 0;
-            } else {
-                required_amount = number == 0 ? candidates.size() : number;
-            }
+        for (LockableResource rs : candidates) {
+            if (number != 0 && (selected.size() >= number)) break;
+            if (!rs.isReserved() && !rs.isLocked() && !rs.isQueued()) selected.add(rs);
+        }
+
+        // if did not get wanted amount or did not get all
+        final int required_amount;
+        if (candidatesByScript && candidates.isEmpty()) {
+            /*
+             * If the groovy script does not return any candidates, it means nothing is needed, even if a
+             * higher amount is specified. A valid use case is a Matrix job, when not all configurations
+             * need resources.
+             */
+            required_amount = 0;
+        } else {
+            required_amount = number == 0 ? candidates.size() : number;
+        }
 
-            if (selected.size() != required_amount) {
+        if (selected.size() != required_amount) {
+            if (log.isLoggable(Level.FINEST)) {
                 log.log(
                         Level.FINEST,
                         "{0} found {1} resource(s) to queue." + "Waiting for correct amount: {2}.",
                         new Object[] {queueItemProject, selected.size(), required_amount});
-                // just to be sure, clean up
-                for (LockableResource x : this.resources) {
-                    if (x.getQueueItemProject() != null
-                            && x.getQueueItemProject().equals(queueItemProject)) x.unqueue();
-                }
-                return null;
             }
+            // just to be sure, clean up
+            for (LockableResource x : this.getQueuedResourcesOf(queueItemProject)) {
+                x.unqueue();
+            }
+            return null;
+        }
 
+        try (ResourceLocks.Held held = this.lockStripes(selected)) {
+            for (LockableResource rsc : selected) {
+                // might be locked meanwhile by tryLockFree()
+                if (rsc.isReserved() || rsc.isLocked() || (rsc.isQueued() && !rsc.isQueuedByTask(queueItemId))) {
+                    for (LockableResource x : this.getQueuedResourcesOf(queueItemProject)) {
+                        x.unqueue();
+                    }
+                    return null;
+                }
+            }
             for (LockableResource rsc : selected) {
                 rsc.setQueued(queueItemId, queueItemProject);
             }
@@ -548,21 +1628,18 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // Return false if another item queued for this project -> bail out
     private boolean checkCurrentResourcesStatus(
             List<LockableResource> selected, String project, long taskId, Logger log) {
-        for (LockableResource r : this.resources) {
-            // This project might already have something in queue
-            String rProject = r.getQueueItemProject();
-            if (rProject != null && rProject.equals(project)) {
-                if (r.isQueuedByTask(taskId)) {
-                    // this item has queued the resource earlier
-                    selected.add(r);
-                } else {
-                    // The project has another buildable item waiting -> bail out
-                    log.log(
-                            Level.FINEST,
-                            "{0} has another build that already queued resource {1}. Continue queueing.",
-                            new Object[] {project, r});
-                    return false;
-                }
+        // This project might already have something in queue
+        for (LockableResource r : this.getQueuedResourcesOf(project)) {
+            if (r.isQueuedByTask(taskId)) {
+                // this item has queued the resource earlier
+                selected.add(r);
+            } else {
+                // The project has another buildable item waiting -> bail out
+                log.log(
+                        Level.FINEST,
+                        "{0} has another build that already queued resource {1}. Continue queueing.",
+                        new Object[] {project, r});
+                return false;
             }
         }
         return true;
@@ -590,35 +1667,113 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /** Try to lock the resource and return true if locked. */
     public boolean lock(List<LockableResource> resourcesToLock, Run<?, ?> build) {
 
-        LOGGER.fine("lock it: " + resourcesToLock + " for build " + build);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("lock it: " + resourcesToLock + " for build " + build);
+        }
 
         if (build == null) {
             LOGGER.warning("lock() will fails, because the build does not exits. " + resourcesToLock);
             return false; // not locked
         }
 
-        String cause = getCauses(resourcesToLock);
-        if (!cause.isEmpty()) {
-            LOGGER.warning("lock() for build " + build + " will fails, because " + cause);
-            return false; // not locked
+        synchronized (this.syncResources) {
+            try (ResourceLocks.Held held = this.lockStripes(resourcesToLock)) {
+                if (isAnyBlocked(resourcesToLock)) {
+                    LOGGER.warning(
+                            "lock() for build " + build + " will fails, because " + getCauses(resourcesToLock));
+                    return false; // not locked
+                }
+                this.lockResources(resourcesToLock, build);
+            }
+
+            LockedResourcesBuildAction.findAndInitAction(build).addUsedResources(getResourcesNames(resourcesToLock));
+
+            save();
         }
 
-        for (LockableResource r : resourcesToLock) {
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Locks the *resources* for the *build*. The caller holds the stripes of the resources. */
+    private void lockResources(final List<LockableResource> resources, final Run<?, ?> build) {
+        for (LockableResource r : resources) {
             r.unqueue();
             r.setBuild(build);
+            this.statistics.locked(r, build);
         }
+    }
 
-        LockedResourcesBuildAction.findAndInitAction(build).addUsedResources(getResourcesNames(resourcesToLock));
+    // ---------------------------------------------------------------------------
+    /**
+     * Locks the resources with given *names* for the *build* right now, without waiting for {@link
+     * #syncResources}. Only the {@link ResourceLocks stripes} of these resources are held, so lock
+     * steps using disjoint resources do not wait for each other (nor for the UI, the queue or the
+     * freestyle dispatcher).
+     *
+     * <p>That holds only when the save does not need the global lock either, that is with {@link
+     * Constants#SYSTEM_PROPERTY_SAVE_INTERVAL} or with saving disabled. The synchronous save (the
+     * default) writes the whole state under {@link #syncResources} and all stripes, so every lock step
+     * would wait for it anyway, and this method returns null right away.
+     *
+     * <p>It works only in the simple case: all resources exist, all of them are free and no lock step
+     * is waiting in the queue (so nobody is overtaken). Returns null otherwise, then the caller goes the
+     * regular way, which might queue the step.
+     */
+    @CheckForNull
+    @Restricted(NoExternalUse.class)
+    public List<LockableResource> tryLockFree(@NonNull final List<String> names, @NonNull final Run<?, ?> build) {
+        if (names.isEmpty() || this.queue.publishedSize() != 0 || !this.isSaveDeferred()) {
+            return null;
+        }
+        final Map<String, LockableResource> index = this.resourcesByName;
+        final List<LockableResource> resources = new ArrayList<>(names.size());
+        for (String name : names) {
+            final LockableResource resource = name == null ? null : index.get(name);
+            if (resource == null || resources.contains(resource)) {
+                // has to be created, or the duplicates are handled by the regular way
+                return null;
+            }
+            resources.add(resource);
+        }
+        try (ResourceLocks.Held held = this.resourceLocks.lock(resources)) {
+            // checked again with the stripes, the resources might be taken, removed or queued meanwhile
+            if (index != this.resourcesByName || this.queue.publishedSize() != 0) {
+                return null;
+            }
+            for (LockableResource resource : resources) {
+                if (!resource.isFree() || index.get(resource.getName()) != resource) {
+                    return null;
+                }
+            }
+            this.lockResources(resources, build);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("locked without waiting: " + resources + " for build " + build);
+        }
 
+        LockedResourcesBuildAction.findAndInitAction(build).addUsedResources(getResourcesNames(resources));
         save();
+        return resources;
+    }
 
-        return true;
+    // ---------------------------------------------------------------------------
+    /**
+     * Locks the stripes of the *resources*. The caller holds {@link #syncResources}. The index is
+     * refreshed before, because re-indexing takes all stripes and the stripes must not be nested.
+     */
+    @NonNull
+    private ResourceLocks.Held lockStripes(@NonNull final Collection<LockableResource> resources) {
+        this.getResourcesByName();
+        return this.resourceLocks.lock(resources);
     }
 
     // ---------------------------------------------------------------------------
     private void freeResources(List<LockableResource> unlockResources, Run<?, ?> build) {
 
-        LOGGER.fine("free it: " + unlockResources);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("free it: " + unlockResources);
+        }
 
         // make sure there is a list of resource names to unlock
         if (unlockResources == null || unlockResources.isEmpty() || build == null) {
@@ -627,19 +1782,23 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
         List<LockableResource> toBeRemoved = new ArrayList<>();
 
-        for (LockableResource resource : unlockResources) {
-            // No more contexts, unlock resource
+        try (ResourceLocks.Held held = this.lockStripes(unlockResources)) {
+            for (LockableResource resource : unlockResources) {
+                // No more contexts, unlock resource
 
-            // the resource has been currently unlocked (like by LRM page - button unlock, or by API)
-            if (!build.equals(resource.getBuild())) continue;
+                // the resource has been currently unlocked (like by LRM page - button unlock, or by API)
+                if (!build.equals(resource.getBuild())) continue;
 
-            resource.unqueue();
-            resource.setBuild(null);
-            uncacheIfFreeing(resource, true, false);
+                resource.unqueue();
+                resource.setBuild(null);
+                uncacheIfFreeing(resource, true, false);
 
-            if (resource.isEphemeral()) {
-                LOGGER.fine("Remove ephemeral resource: " + resource);
-                toBeRemoved.add(resource);
+                if (resource.isEphemeral()) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Remove ephemeral resource: " + resource);
+                    }
+                    toBeRemoved.add(resource);
+                }
             }
         }
 
@@ -672,9 +1831,51 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (resourceNamesToUnLock == null || resourceNamesToUnLock.isEmpty()) {
             return;
         }
+        this.unlockNames(Collections.singletonMap(build, resourceNamesToUnLock));
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Releases resources of many builds at once. All resources are freed first, then the queue is
+     * checked once and the state is saved once.
+     *
+     * <p>Concurrent calls are combined too: each request is registered before waiting for {@link
+     * #syncResources}, and the thread which gets the lock releases all registered requests. So when
+     * this method returns, the resources are free (like before), but many parallel stages finishing
+     * at the same time cause only one queue sweep and one save.
+     */
+    public void unlockNames(@NonNull final Map<Run<?, ?>, List<String>> resourceNamesByBuild) {
+        for (Map.Entry<Run<?, ?>, List<String>> entry : resourceNamesByBuild.entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                this.pendingUnlocks.add(new UnlockRequest(entry.getKey(), entry.getValue()));
+            }
+        }
+        final long waiting = System.nanoTime();
         synchronized (this.syncResources) {
-            unlockResources(this.fromNames(resourceNamesToUnLock), build);
+            final long acquired = System.nanoTime();
+            // the requests might be done already by another thread
+            this.unlockPendingRequests();
+            PluginMetrics.syncHeld(acquired - waiting, System.nanoTime() - acquired);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void unlockPendingRequests() {
+        List<LockableResource> freed = new ArrayList<>();
+        UnlockRequest request;
+        while ((request = this.pendingUnlocks.poll()) != null) {
+            List<LockableResource> resources = this.fromNames(request.resourceNames);
+            this.freeResources(resources, request.build);
+            freed.addAll(resources);
+        }
+        if (freed.isEmpty()) {
+            return;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("unlocked in one batch: " + freed);
         }
+        this.proceedWaitersFor(freed);
+        save();
     }
 
     // ---------------------------------------------------------------------------
@@ -687,29 +1888,58 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (resourcesToUnLock == null || resourcesToUnLock.isEmpty()) {
             return;
         }
+        final long waiting = System.nanoTime();
         synchronized (this.syncResources) {
+            final long acquired = System.nanoTime();
             this.freeResources(resourcesToUnLock, build);
-
-            while (proceedNextContext()) {
-                // process as many contexts as possible
-            }
-
+            this.proceedWaitersFor(resourcesToUnLock);
             save();
+            PluginMetrics.syncHeld(acquired - waiting, System.nanoTime() - acquired);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Starts as many queued contexts as possible, once given resources have been freed. */
+    private void proceedWaitersFor(final List<LockableResource> freed) {
+        // only the contexts waiting for one of these resources can be started now
+        final Set<QueuedContextStruct> waiters = this.queueWakeupIndex.getWaitersFor(freed);
+        while (!waiters.isEmpty() && proceedNextContext(waiters)) {
+            // process as many contexts as possible
         }
     }
 
+    // ---------------------------------------------------------------------------
     private boolean proceedNextContext() {
-        QueuedContextStruct nextContext = this.getNextQueuedContext();
-        LOGGER.finest("nextContext: " + nextContext);
+        return this.proceedNextContext(null);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Starts the next queued context, which can be started.
+     *
+     * @param waiters When set, only these contexts are checked. The started one is removed.
+     */
+    private boolean proceedNextContext(@CheckForNull final Set<QueuedContextStruct> waiters) {
+        QueuedContextStruct nextContext = this.getNextQueuedContext(waiters);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("nextContext: " + nextContext);
+        }
         // no context is queued which can be started once these resources are free'd.
         if (nextContext == null) {
             LOGGER.fine("No context is queued which can be started once these resources are free'd.");
             return false;
         }
-        LOGGER.finest("nextContext candidates: " + nextContext.candidates);
+        if (waiters != null) {
+            waiters.remove(nextContext);
+        }
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("nextContext candidates: " + nextContext.candidates);
+        }
         List<LockableResource> requiredResourceForNextContext =
                 this.fromNames(nextContext.candidates, /*create un-existent resources */ true);
-        LOGGER.finest("nextContext real candidates: " + requiredResourceForNextContext);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("nextContext real candidates: " + requiredResourceForNextContext);
+        }
         // remove context from queue and process it
 
         Run<?, ?> build = nextContext.getBuild();
@@ -734,15 +1964,37 @@ public class LockableResourcesManager extends GlobalConfiguration {
             resourcesToLock.put(requiredResource.getName(), requiredResource.getProperties());
         }
 
+        this.onLockAcquired(nextContext.getResources(), requiredResourceForNextContext, waitingMillis(nextContext));
         this.unqueueContext(nextContext.getContext());
 
-        // continue with next context
-        LockStepExecution.proceed(
-                resourcesToLock,
-                nextContext.getContext(),
-                nextContext.getResourceDescription(),
-                nextContext.getVariableName());
-        return true;
+        // continue with next context
+        LockStepExecution.proceed(
+                resourcesToLock,
+                nextContext.getContext(),
+                nextContext.getResourceDescription(),
+                nextContext.getVariableName());
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Called, when the lock step got the *locked* resources for the *requirements* after
+     * *waitMillis* (0 when they were free immediately).
+     */
+    @Restricted(NoExternalUse.class)
+    public void onLockAcquired(
+            @NonNull final List<LockableResourcesStruct> requirements,
+            @NonNull final List<LockableResource> locked,
+            final long waitMillis) {
+        PluginMetrics.lockAcquired(requirements, locked, waitMillis);
+        this.statistics.acquired(requirements, locked, waitMillis, System.currentTimeMillis());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns milliseconds since the lock step of *context* has been queued. */
+    private static long waitingMillis(final QueuedContextStruct context) {
+        final long queuedAt = QueuedContexts.queuedAt(context);
+        return queuedAt == 0 ? 0 : Math.max(0, System.currentTimeMillis() - queuedAt);
     }
 
     // ---------------------------------------------------------------------------
@@ -771,32 +2023,54 @@ public class LockableResourcesManager extends GlobalConfiguration {
     /**
      * Returns the next queued context with all its requirements satisfied.
      *
+     * @param waiters When set, all other contexts are skipped (see {@link QueueWakeupIndex}).
      */
     @CheckForNull
-    private QueuedContextStruct getNextQueuedContext() {
+    private QueuedContextStruct getNextQueuedContext(@CheckForNull final Set<QueuedContextStruct> waiters) {
 
-        LOGGER.fine("current queue size: " + this.queuedContexts.size());
-        LOGGER.finest("current queue: " + this.queuedContexts);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("current queue size: " + this.queue.size());
+        }
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("current queue: " + this.queue.toList());
+        }
         List<QueuedContextStruct> orphan = new ArrayList<>();
         QueuedContextStruct nextEntry = null;
 
         // the first one added lock is the oldest one, and this wins
-
-        for (int idx = 0; idx < this.queuedContexts.size() && nextEntry == null; idx++) {
-            QueuedContextStruct entry = this.queuedContexts.get(idx);
+        // only the waiters are checked, when known
+        final Iterable<QueuedContextStruct> entries = waiters != null ? this.queue.inQueueOrder(waiters) : this.queue;
+        int idx = -1;
+        for (QueuedContextStruct entry : entries) {
+            if (nextEntry != null) {
+                break;
+            }
+            idx++;
             // check queue list first
             if (!entry.isValid()) {
-                LOGGER.fine("well be removed: " + idx + " " + entry);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("well be removed: " + idx + " " + entry);
+                }
                 orphan.add(entry);
                 continue;
             }
-            LOGGER.finest("oldest win - index: " + idx + " " + entry);
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("oldest win - index: " + idx + " " + entry);
+            }
 
             nextEntry = getNextQueuedContextEntry(entry);
         }
 
         if (!orphan.isEmpty()) {
-            this.queuedContexts.removeAll(orphan);
+            for (QueuedContextStruct entry : orphan) {
+                this.queue.remove(entry);
+                this.queueWakeupIndex.remove(entry);
+                if (waiters != null) {
+                    waiters.remove(entry);
+                }
+                this.addJournalEntry(LockableResourcesJournal.Entry.unqueue(entry));
+                this.changeFeed.contextUnqueued(entry);
+            }
         }
 
         return nextEntry;
@@ -810,7 +2084,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
         }
 
         entry.candidates = getResourcesNames(candidates);
-        LOGGER.fine("take this: " + entry);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("take this: " + entry);
+        }
         return entry;
     }
 
@@ -819,10 +2095,27 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class) // used by jelly
     public List<QueuedContextStruct> getCurrentQueuedContext() {
         synchronized (this.syncResources) {
-            return Collections.unmodifiableList(this.queuedContexts);
+            return Collections.unmodifiableList(this.queue.toList());
         }
     }
 
+    // ---------------------------------------------------------------------------
+    /** Amount of queued lock steps. Does not wait for the manager lock, so it is cheap enough for metrics. */
+    @Restricted(NoExternalUse.class)
+    public int getQueuedContextCount() {
+        return this.queue.publishedSize();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Time (epoch millis), the oldest queued lock step has been queued, or 0 when the queue is empty.
+     * Does not wait for the manager lock, so it is cheap enough for metrics.
+     */
+    @Restricted(NoExternalUse.class)
+    public long getOldestQueuedAt() {
+        return this.queue.publishedOldestQueuedAt();
+    }
+
     // ---------------------------------------------------------------------------
     /** Creates the resource if it does not exist. */
     public boolean createResource(@CheckForNull String name) {
@@ -884,7 +2177,13 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 LOGGER.finest("We will add existing resource: " + resource + getStack());
                 return false;
             }
+            // resourceExist() above made sure, the index is up to date
             this.resources.add(resource);
+            this.indexResource(resource);
+            this.onResourceChanged(resource);
+            // visible for tryLockFree() once it is connected with this manager
+            this.resourcesByName.put(resource.getName(), resource);
+            this.publishAdded(resource);
             LOGGER.fine("Resource added : " + resource);
             if (doSave) {
                 this.save();
@@ -900,13 +2199,15 @@ public class LockableResourcesManager extends GlobalConfiguration {
      */
     public boolean reserve(List<LockableResource> resources, String userName) {
         synchronized (this.syncResources) {
-            for (LockableResource r : resources) {
-                if (!r.isFree()) {
-                    return false;
+            try (ResourceLocks.Held held = this.lockStripes(resources)) {
+                for (LockableResource r : resources) {
+                    if (!r.isFree()) {
+                        return false;
+                    }
+                }
+                for (LockableResource r : resources) {
+                    r.reserve(userName);
                 }
-            }
-            for (LockableResource r : resources) {
-                r.reserve(userName);
             }
             save();
         }
@@ -921,14 +2222,19 @@ public class LockableResourcesManager extends GlobalConfiguration {
      */
     public boolean steal(List<LockableResource> resources, String userName) {
         synchronized (this.syncResources) {
-            for (LockableResource r : resources) {
-                r.setReservedBy(userName);
-                r.setStolen();
+            try (ResourceLocks.Held held = this.lockStripes(resources)) {
+                for (LockableResource r : resources) {
+                    r.setReservedBy(userName);
+                    r.setStolen();
+                }
             }
+            // not nested in the stripes, it locks the resources of the queued steps
             unlockResources(resources);
             Date date = new Date();
-            for (LockableResource r : resources) {
-                r.setReservedTimestamp(date);
+            try (ResourceLocks.Held held = this.lockStripes(resources)) {
+                for (LockableResource r : resources) {
+                    r.setReservedTimestamp(date);
+                }
             }
             save();
         }
@@ -943,11 +2249,13 @@ public class LockableResourcesManager extends GlobalConfiguration {
      */
     public void reassign(List<LockableResource> resources, String userName) {
         synchronized (this.syncResources) {
-            for (LockableResource r : resources) {
-                if (!r.isFree()) {
-                    r.unReserve();
+            try (ResourceLocks.Held held = this.lockStripes(resources)) {
+                for (LockableResource r : resources) {
+                    if (!r.isFree()) {
+                        r.unReserve();
+                    }
+                    r.setReservedBy(userName);
                 }
-                r.setReservedBy(userName);
             }
             save();
         }
@@ -955,9 +2263,11 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
     // ---------------------------------------------------------------------------
     private void unreserveResources(@NonNull List<LockableResource> resources) {
-        for (LockableResource l : resources) {
-            uncacheIfFreeing(l, false, true);
-            l.unReserve();
+        try (ResourceLocks.Held held = this.lockStripes(resources)) {
+            for (LockableResource l : resources) {
+                uncacheIfFreeing(l, false, true);
+                l.unReserve();
+            }
         }
         save();
     }
@@ -990,9 +2300,11 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // ---------------------------------------------------------------------------
     public void reset(List<LockableResource> resources) {
         synchronized (this.syncResources) {
-            for (LockableResource r : resources) {
-                uncacheIfFreeing(r, true, true);
-                r.reset();
+            try (ResourceLocks.Held held = this.lockStripes(resources)) {
+                for (LockableResource r : resources) {
+                    uncacheIfFreeing(r, true, true);
+                    r.reset();
+                }
             }
             save();
         }
@@ -1020,27 +2332,22 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Restricted(NoExternalUse.class) // used by jelly
     public void changeQueueOrder(final String queueId, final int newPosition) throws IOException {
         synchronized (this.syncResources) {
-            if (newPosition < 0 || newPosition >= this.queuedContexts.size()) {
-                throw new IOException(
-                        Messages.error_queuePositionOutOfRange(newPosition + 1, this.queuedContexts.size()));
-            }
-
-            QueuedContextStruct queueItem = null;
-            int oldIndex = -1;
-            for (int i = 0; i < this.queuedContexts.size(); i++) {
-                QueuedContextStruct entry = this.queuedContexts.get(i);
-                if (entry.getId().equals(queueId)) {
-                    oldIndex = i;
-                    break;
-                }
+            if (newPosition < 0 || newPosition >= this.queue.size()) {
+                throw new IOException(Messages.error_queuePositionOutOfRange(newPosition + 1, this.queue.size()));
             }
 
-            if (oldIndex < 0) {
+            final QueuedContextStruct queueItem = this.queue.getById(queueId);
+            if (queueItem == null) {
                 // no more exists !?
                 throw new IOException(Messages.error_queueDoesNotExist(queueId));
             }
 
-            Collections.swap(this.queuedContexts, oldIndex, newPosition);
+            final QueuedContextStruct other = this.queue.get(newPosition);
+            if (other != null) {
+                this.queue.swap(queueItem, other);
+            }
+            // swap is not journaled
+            this.fullSaveRequired = true;
         }
     }
 
@@ -1054,6 +2361,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 // reset resources to default which are not currently locked
                 this.resources.removeIf(resource -> !resource.isLocked());
                 req.bindJSON(this, json);
+                this.reindexResources();
                 bc.commit();
             } catch (IOException exception) {
                 LOGGER.log(Level.WARNING, "Exception occurred while committing bulkchange operation.", exception);
@@ -1089,8 +2397,61 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // ---------------------------------------------------------------------------
     /** Function removes all given resources */
     public void removeResources(List<LockableResource> toBeRemoved) {
+        if (toBeRemoved == null || toBeRemoved.isEmpty()) {
+            return;
+        }
+        synchronized (this.syncResources) {
+            // tryLockFree() does not lock resources, which are not registered any more
+            try (ResourceLocks.Held held = this.lockStripes(toBeRemoved)) {
+                this.removeResourcesLocked(toBeRemoved);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Removes those of the *candidates*, which are free (not locked, reserved or queued). The check
+     * and the removal are done at once, so no build can lock them in between. Returns the removed
+     * resources.
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public List<LockableResource> removeFreeResources(@NonNull final List<LockableResource> candidates) {
+        final List<LockableResource> toBeRemoved = new ArrayList<>(candidates.size());
         synchronized (this.syncResources) {
-            this.resources.removeAll(toBeRemoved);
+            try (ResourceLocks.Held held = this.lockStripes(candidates)) {
+                for (LockableResource candidate : candidates) {
+                    if (candidate.isFree()) {
+                        toBeRemoved.add(candidate);
+                    }
+                }
+                this.removeResourcesLocked(toBeRemoved);
+            }
+        }
+        return toBeRemoved;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** {@link #removeResources} while holding {@link #syncResources} and the stripes of the resources. */
+    private void removeResourcesLocked(final List<LockableResource> toBeRemoved) {
+        if (toBeRemoved.isEmpty()) {
+            return;
+        }
+        Map<String, LockableResource> index = this.getResourcesByName();
+        // hash based look-up, otherwise it is O(n*k)
+        this.resources.removeAll(new HashSet<>(toBeRemoved));
+        List<LockableResource> removedResources = new ArrayList<>(toBeRemoved.size());
+        for (LockableResource r : toBeRemoved) {
+            LockableResource removed = index.remove(r.getName());
+            if (removed != null) {
+                removedResources.add(removed);
+            }
+        }
+        // while the index positions are still known
+        this.publishRemoved(removedResources);
+        for (LockableResource removed : removedResources) {
+            this.unindexResource(removed);
+            this.addJournalEntry(LockableResourcesJournal.Entry.removeResource(removed.getName()));
         }
     }
 
@@ -1105,7 +2466,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
             final @Nullable PrintStream logger,
             final @Nullable ResourceSelectStrategy selectStrategy) {
 
-        LOGGER.finest("getAvailableResources, " + requiredResourcesList);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("getAvailableResources, " + requiredResourcesList);
+        }
         List<LockableResource> candidates = new ArrayList<>();
         for (LockableResourcesStruct requiredResources : requiredResourcesList) {
             List<LockableResource> available = new ArrayList<>();
@@ -1140,7 +2503,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
             }
 
             if (available == null || available.isEmpty()) {
-                LOGGER.finest("No available resources found " + requiredResourcesList);
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("No available resources found " + requiredResourcesList);
+                }
                 return null;
             }
 
@@ -1234,15 +2599,30 @@ public class LockableResourcesManager extends GlobalConfiguration {
             }
         }
 
-        String msg = "Found " + found.size() + " available resource(s). Waiting for correct amount: " + amount + ".";
-        if (enabledBlockedCount != 0) {
-            msg += "\nBlocking causes: " + getCauses(candidates);
+        if (logger != null || LOGGER.isLoggable(Level.FINE)) {
+            String msg =
+                    "Found " + found.size() + " available resource(s). Waiting for correct amount: " + amount + ".";
+            if (enabledBlockedCount != 0) {
+                msg += "\nBlocking causes: " + getCauses(candidates);
+            }
+            printLogs(msg, logger, Level.FINE);
         }
-        printLogs(msg, logger, Level.FINE);
 
         return null;
     }
 
+    // ---------------------------------------------------------------------------
+    /** Returns true, when one of the *resources* is reserved or locked (see {@link #getCauses}). */
+    private static boolean isAnyBlocked(final List<LockableResource> resources) {
+        for (int i = 0; i < resources.size(); i++) {
+            final LockableResource resource = resources.get(i);
+            if (resource.isReserved() || resource.isLocked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // ---------------------------------------------------------------------------
     // for debug purpose
     private String getCauses(List<LockableResource> resources) {
@@ -1272,7 +2652,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     private String getQueueCause(final LockableResource resource) {
         Map<Run<?, ?>, Integer> usage = new HashMap<>();
 
-        for (QueuedContextStruct entry : this.queuedContexts) {
+        for (QueuedContextStruct entry : this.queue) {
 
             Run<?, ?> build = entry.getBuild();
             if (build == null) {
@@ -1333,39 +2713,28 @@ public class LockableResourcesManager extends GlobalConfiguration {
             boolean inversePrecedence,
             int priority) {
         synchronized (this.syncResources) {
-            for (QueuedContextStruct entry : this.queuedContexts) {
-                if (entry.getContext() == context) {
-                    LOGGER.warning("queueContext, duplicated, " + requiredResources);
-                    return;
-                }
+            if (this.queue.getByContext(context) != null) {
+                LOGGER.warning("queueContext, duplicated, " + requiredResources);
+                return;
             }
 
-            int queueIndex = 0;
             QueuedContextStruct newQueueItem =
                     new QueuedContextStruct(context, requiredResources, resourceDescription, variableName, priority);
 
-            if (inversePrecedence && priority == 0) {
-                queueIndex = 0;
-            } else {
-                queueIndex = this.queuedContexts.size() - 1;
-                // LOGGER.info("newQueueItem " + newQueueItem.toString());
-                for (; queueIndex >= 0; queueIndex--) {
-                    QueuedContextStruct entry = this.queuedContexts.get(queueIndex);
-                    final int rc = entry.compare(newQueueItem);
-                    // LOGGER.info("compare " + rc + " " + entry.toString());
-                    if (rc > 0) {
-                        continue;
-                    }
-                    break;
-                }
-                queueIndex++;
+            // behind the last entry with the same or higher priority, or first with inversePrecedence
+            this.queue.add(newQueueItem, inversePrecedence);
+            this.queueWakeupIndex.add(newQueueItem);
+            if (this.isJournalEnabled()) {
+                // the neighbour, not the position: it is found in O(log n)
+                this.addJournalEntry(
+                        LockableResourcesJournal.Entry.queue(newQueueItem, this.queue.previous(newQueueItem)));
+            }
+            this.changeFeed.contextQueued(newQueueItem);
+            this.statistics.queued(newQueueItem);
+            final PrintStream buildLogger = newQueueItem.getLogger();
+            if (buildLogger != null || LOGGER.isLoggable(Level.FINE)) {
+                printLogs(requiredResources + " added into queue", buildLogger, Level.FINE);
             }
-
-            this.queuedContexts.add(queueIndex, newQueueItem);
-            printLogs(
-                    requiredResources + " added into queue at position " + queueIndex,
-                    newQueueItem.getLogger(),
-                    Level.FINE);
 
             save();
         }
@@ -1374,12 +2743,14 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // ---------------------------------------------------------------------------
     public boolean unqueueContext(StepContext context) {
         synchronized (this.syncResources) {
-            for (Iterator<QueuedContextStruct> iter = this.queuedContexts.listIterator(); iter.hasNext(); ) {
-                if (iter.next().getContext() == context) {
-                    iter.remove();
-                    save();
-                    return true;
-                }
+            final QueuedContextStruct entry = this.queue.getByContext(context);
+            if (entry != null) {
+                this.queue.remove(entry);
+                this.queueWakeupIndex.remove(entry);
+                this.addJournalEntry(LockableResourcesJournal.Entry.unqueue(entry));
+                this.changeFeed.contextUnqueued(entry);
+                save();
+                return true;
             }
         }
         return false;
@@ -1392,21 +2763,466 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
     // ---------------------------------------------------------------------------
     @Override
-    public void save() {
+    public synchronized void load() {
+        super.load();
+        synchronized (this.syncResources) {
+            this.queue.clear();
+            if (this.queuedContexts != null) {
+                for (QueuedContextStruct entry : this.queuedContexts) {
+                    this.queue.addLast(entry);
+                }
+            }
+            // from now on the queue is the only truth
+            this.queuedContexts = null;
+        }
+        this.reindexResources();
+        this.replayJournal();
+        synchronized (this.syncResources) {
+            this.queueWakeupIndex.rebuild(this.queue.toList());
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Applies changes from the journal (written since last full save) on top of the loaded XML file
+     * and compacts them into the XML file.
+     */
+    private void replayJournal() {
+        final LockableResourcesJournal journal = this.getJournal();
+        if (journal == null || !journal.getFile().exists()) {
+            return;
+        }
+
+        synchronized (this.syncResources) {
+            List<LockableResourcesJournal.Entry> entries = journal.read();
+            LOGGER.info("lockable-resources-plugin: replay " + entries.size() + " journal entries");
+
+            LinkedHashMap<String, LockableResource> merged = new LinkedHashMap<>();
+            for (LockableResource r : this.resources) {
+                merged.putIfAbsent(r.getName(), r);
+            }
+            for (LockableResourcesJournal.Entry entry : entries) {
+                switch (entry.type) {
+                    case RESOURCE:
+                        if (entry.resource != null) {
+                            // replace keeps the position of existing resources
+                            merged.put(entry.resource.getName(), entry.resource);
+                        }
+                        break;
+                    case REMOVE_RESOURCE:
+                        merged.remove(entry.name);
+                        break;
+                    case QUEUE:
+                        if (entry.context != null) {
+                            this.queue.addAfter(entry.after, entry.context);
+                        }
+                        break;
+                    case UNQUEUE:
+                        final QueuedContextStruct queued = this.queue.getById(entry.name);
+                        if (queued != null) {
+                            this.queue.remove(queued);
+                        }
+                        break;
+                    default:
+                        LOGGER.warning("Unknown journal entry: " + entry.type);
+                }
+            }
+            this.resources = new ArrayList<>(merged.values());
+            this.reindexResources();
+
+            // compact it
+            this.fullSaveRequired = true;
+            if (this.isSaveEnabled()) {
+                this.writeNow();
+            } else {
+                // saving is disabled, so we will never need this journal again
+                journal.reset();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    private LockableResourcesJournal getJournal() {
+        if (this.journal == null) {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins == null) {
+                return null;
+            }
+            this.journal = new LockableResourcesJournal(new File(jenkins.getRootDir(), getId() + ".journal"));
+        }
+        return this.journal;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns false, when the saving is disabled by {@link Constants#SYSTEM_PROPERTY_DISABLE_SAVE}. */
+    private boolean isSaveEnabled() {
         if (enableSave == -1) {
             // read system property and cache it.
             enableSave = SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_DISABLE_SAVE) ? 0 : 1;
         }
+        return enableSave == 1;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns true, when {@link #save()} does not write synchronously (and so needs no global lock). */
+    private boolean isSaveDeferred() {
+        return this.saveInterval > 0 || !this.isSaveEnabled();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns true, when the changes shall be written into journal. */
+    private boolean isJournalEnabled() {
+        if (!this.isSaveEnabled()) {
+            return false;
+        }
+        if (enableJournal == -1) {
+            // read system property and cache it.
+            enableJournal = SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_ENABLE_SAVE_JOURNAL) ? 1 : 0;
+        }
+        return enableJournal == 1;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Remember structural change for the next save. */
+    private void addJournalEntry(final LockableResourcesJournal.Entry entry) {
+        if (this.isJournalEnabled()) {
+            this.pendingJournalEntries.add(entry);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Collects journal entries for all changes since the last save. */
+    @NonNull
+    private List<LockableResourcesJournal.Entry> collectJournalEntries(final boolean copy) {
+        List<LockableResourcesJournal.Entry> entries = new ArrayList<>(this.pendingJournalEntries);
+        this.pendingJournalEntries.clear();
+        for (Iterator<LockableResource> iter = this.changedResources.iterator(); iter.hasNext(); ) {
+            LockableResource resource = iter.next();
+            iter.remove();
+            if (this.resourcesByName.get(resource.getName()) == resource) {
+                entries.add(LockableResourcesJournal.Entry.resource(
+                        copy ? resource.copyPersistedState() : resource));
+            }
+        }
+        return entries;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Persists the current state. Per default it is written immediately. When {@link
+     * Constants#SYSTEM_PROPERTY_SAVE_INTERVAL} is set, the manager is only marked as dirty and all saves
+     * within the interval are coalesced into one background write, see {@link #flush()}.
+     */
+    @Override
+    public void save() {
+        if (!this.isSaveEnabled()) return; // saving is disabled
+
+        if (BulkChange.contains(this)) return;
+
+        if (saveInterval > 0) {
+            this.saveRequested.set(true);
+            this.scheduleSave();
+            return;
+        }
+
+        this.writeNow();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Writes the current state synchronously. All stripes are held too, so no resource is locked by
+     * {@link #tryLockFree} while it is serialized.
+     */
+    private void writeNow() {
+        synchronized (this.syncResources) {
+            try (ResourceLocks.Held held = this.resourceLocks.lockAll()) {
+                this.takeSnapshot(false).write();
+            }
+        }
+    }
 
-        if (enableSave == 0) return; // saving is disabled
+    // ---------------------------------------------------------------------------
+    /**
+     * Writes all pending changes now and waits until they are on disk. With synchronous saving (the
+     * default) everything is written already and this method returns immediately.
+     */
+    public void flush() {
+        if (!this.isSaveEnabled() || saveInterval <= 0 || !this.saveRequested.get()) {
+            return;
+        }
 
+        Future<?> written;
         synchronized (this.syncResources) {
-            if (BulkChange.contains(this)) return;
+            if (!this.saveRequested.getAndSet(false)) {
+                return; // somebody else was faster
+            }
+            if (this.saveWriter == null) {
+                this.saveWriter = Executors.newSingleThreadExecutor(
+                        new NamingThreadFactory(new DaemonThreadFactory(), "LockableResourcesManager.save"));
+            }
+            // submit under the lock, so the snapshots are written in the same order they were taken
+            try (ResourceLocks.Held held = this.resourceLocks.lockAll()) {
+                written = this.saveWriter.submit(this.takeSnapshot(true)::write);
+            }
+        }
+
+        // the writer never takes syncResources, so it is safe to wait here even when the caller holds it
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Interrupted while saving " + getConfigFile(), e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private void scheduleSave() {
+        if (this.saveScheduled.compareAndSet(false, true)) {
+            Timer.get()
+                    .schedule(
+                            () -> {
+                                this.saveScheduled.set(false);
+                                this.flush();
+                            },
+                            saveInterval,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Writes all pending changes before Jenkins goes down and stops the background writer. */
+    @Terminator
+    @Restricted(NoExternalUse.class)
+    public static void flushOnShutdown() {
+        final ExtensionList<LockableResourcesManager> managers = ExtensionList.lookup(LockableResourcesManager.class);
+        if (managers.isEmpty()) {
+            // Jenkins failed to start, there is nothing to save
+            return;
+        }
+        final LockableResourcesManager lrm = managers.get(0);
+        LOGGER.fine("lockable-resources-plugin: flush state on shutdown");
+        lrm.flush();
+
+        final ExecutorService writer;
+        synchronized (syncResources) {
+            writer = lrm.saveWriter;
+            lrm.saveWriter = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Takes everything to be written. Must be called under {@link #syncResources}. The state is either
+     * appended to the journal or written as whole file.
+     *
+     * @param copy Copy the (mutable) resources, so the snapshot can be written without the lock. The
+     *     queue is copied always.
+     */
+    @NonNull
+    private SaveSnapshot takeSnapshot(final boolean copy) {
+        final LockableResourcesJournal journal = this.getJournal();
+        if (this.isJournalEnabled() && journal != null && !this.fullSaveRequired) {
+            if (this.journalSize < 0) {
+                this.journalSize = journal.size();
+            }
+            if (this.journalSize < journalCompactionThreshold) {
+                List<LockableResourcesJournal.Entry> entries = this.collectJournalEntries(copy);
+                this.journalSize += entries.size();
+                return new SaveSnapshot(this, journal, null, entries);
+            }
+        }
+
+        // everything changed until now will be in the file
+        this.changedResources.clear();
+        this.pendingJournalEntries.clear();
+        this.fullSaveRequired = false;
+        this.journalSize = 0;
+        List<LockableResource> resourcesCopy = this.resources;
+        if (copy) {
+            resourcesCopy = new ArrayList<>(this.resources.size());
+            for (LockableResource resource : this.resources) {
+                resourcesCopy.add(resource.copyPersistedState());
+            }
+        }
+        // the queue is persisted as list, see queuedContexts
+        return new SaveSnapshot(
+                this, journal, new PersistedState(resourcesCopy, this.queue.toList(), this.enableSave), null);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called by the writer, when the snapshot could not be written. The next save writes the whole file. */
+    private void onSaveFailed() {
+        this.fullSaveRequired = true;
+        if (saveInterval > 0) {
+            this.saveRequested.set(true);
+            this.scheduleSave();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Called by the writer, when the journal entries could not be written. They are not lost, the whole
+     * file is written instead: immediately when saving synchronously (the caller holds {@link
+     * #syncResources}), otherwise by the next background save.
+     */
+    private void onJournalFailed() {
+        this.fullSaveRequired = true;
+        if (saveInterval > 0) {
+            // the background writer must not take syncResources, see flush()
+            this.saveRequested.set(true);
+            this.scheduleSave();
+            return;
+        }
+        this.writeNow();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Resources to be released for one build, see {@link #unlockNames(Map)}. */
+    private static final class UnlockRequest {
+
+        @CheckForNull
+        private final Run<?, ?> build;
+
+        @NonNull
+        private final List<String> resourceNames;
+
+        UnlockRequest(@CheckForNull Run<?, ?> build, @NonNull List<String> resourceNames) {
+            this.build = build;
+            this.resourceNames = resourceNames;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Persisted fields of the manager, written instead of the manager itself, so the save does not
+     * create a new manager (with all its caches and indexes). The names of the fields match the ones of
+     * the manager, and the class is written under the name of the manager, see {@link
+     * ManagerRootWriter}.
+     */
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "read by XStream")
+    private static final class PersistedState {
+
+        private final List<LockableResource> resources;
+        private final List<QueuedContextStruct> queuedContexts;
+        private final int enableSave;
+
+        PersistedState(
+                final List<LockableResource> resources,
+                final List<QueuedContextStruct> queuedContexts,
+                final int enableSave) {
+            this.resources = resources;
+            this.queuedContexts = queuedContexts;
+            this.enableSave = enableSave;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Writes the root element of {@link PersistedState} as {@code
+     * <org.jenkins.plugins.lockableresources.LockableResourcesManager>}, so {@link #load()} reads it
+     * as the manager. Only the name of the root element is replaced, everything else is written by
+     * {@link Jenkins#XSTREAM2} with all its converters and aliases, like {@link XmlFile#write(Object)}
+     * does. An alias on the shared XStream would change the reading of the manager too.
+     */
+    private static final class ManagerRootWriter extends WriterWrapper {
+
+        private boolean root = true;
+
+        ManagerRootWriter(final HierarchicalStreamWriter wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public void startNode(final String name) {
+            super.startNode(this.nodeName(name));
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public void startNode(final String name, final Class clazz) {
+            super.startNode(this.nodeName(name), clazz);
+        }
+
+        private String nodeName(final String name) {
+            if (this.root) {
+                this.root = false;
+                return LockableResourcesManager.class.getName();
+            }
+            return name;
+        }
+    }
 
+    // ---------------------------------------------------------------------------
+    /** State to be written, either the whole manager or the journal entries. */
+    private static final class SaveSnapshot {
+
+        private final LockableResourcesManager owner;
+
+        /** Journal at the time of the snapshot, written or reset. */
+        @CheckForNull
+        private final LockableResourcesJournal journal;
+
+        @CheckForNull
+        private final PersistedState state;
+
+        @CheckForNull
+        private final List<LockableResourcesJournal.Entry> journalEntries;
+
+        SaveSnapshot(
+                @NonNull LockableResourcesManager owner,
+                @CheckForNull LockableResourcesJournal journal,
+                @CheckForNull PersistedState state,
+                @CheckForNull List<LockableResourcesJournal.Entry> journalEntries) {
+            this.owner = owner;
+            this.journal = journal;
+            this.state = state;
+            this.journalEntries = journalEntries;
+        }
+
+        void write() {
+            if (this.journalEntries != null) {
+                if (this.journal == null) {
+                    LOGGER.warning("No journal to write " + this.journalEntries.size() + " changes, save whole file.");
+                    this.owner.onJournalFailed();
+                    return;
+                }
+                try {
+                    final long start = System.nanoTime();
+                    final long bytes = this.journal.append(this.journalEntries);
+                    PluginMetrics.saved(System.nanoTime() - start, bytes);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to write " + this.journal.getFile() + ", save whole file.", e);
+                    this.owner.onJournalFailed();
+                }
+                return;
+            }
+
+            if (this.state == null) {
+                return;
+            }
             try {
-                getConfigFile().write(this);
+                final long start = System.nanoTime();
+                final File file = this.owner.getConfigFile().getFile();
+                try (AtomicFileWriter out = new AtomicFileWriter(file)) {
+                    out.write("<?xml version='1.1' encoding='UTF-8'?>\n");
+                    final HierarchicalStreamWriter writer = new ManagerRootWriter(new PrettyPrintWriter(out));
+                    Jenkins.XSTREAM2.marshal(this.state, writer);
+                    writer.flush();
+                    out.commit();
+                }
+                PluginMetrics.saved(System.nanoTime() - start, file.length());
+                if (this.journal != null) {
+                    this.journal.reset();
+                }
             } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+                LOGGER.log(Level.WARNING, "Failed to save " + this.owner.getConfigFile(), e);
+                this.owner.onSaveFailed();
             }
         }
     }
@@ -0,0 +1,202 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Timer;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+import jenkins.util.SystemProperties;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkins.plugins.lockableresources.util.PluginMetrics;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+// -----------------------------------------------------------------------------
+/**
+ * Dropwizard metrics of the plugin, read by the Jenkins metrics plugin (and everything built on it,
+ * like the prometheus plugin). Loaded only when the metrics plugin is installed.
+ *
+ * <p>The wait times per label are registered on first use, the wait times per resource only with
+ * {@link Constants#SYSTEM_PROPERTY_METRICS_PER_RESOURCE}, because there might be many thousands of
+ * resources. The amount of threads blocked by the manager lock needs a thread dump, so it is
+ * registered only with {@link Constants#SYSTEM_PROPERTY_METRICS_SYNC_BLOCKED}.
+ */
+@Extension(optional = true)
+@Restricted(NoExternalUse.class)
+public class LockableResourcesMetricProvider extends MetricProvider implements PluginMetrics.Recorder {
+
+    private static final String PREFIX = "lockable-resources.";
+
+    private static final boolean PER_RESOURCE =
+            SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_METRICS_PER_RESOURCE);
+
+    private static final boolean SYNC_BLOCKED =
+            SystemProperties.getBoolean(Constants.SYSTEM_PROPERTY_METRICS_SYNC_BLOCKED);
+
+    private final Timer lockWait = newTimer();
+    private final Timer syncWait = newTimer();
+    private final Timer syncHeld = newTimer();
+    private final Timer saveDuration = newTimer();
+    private final Histogram saveBytes = new Histogram(new SlidingTimeWindowArrayReservoir(5, TimeUnit.MINUTES));
+    private final Counter tryQueueSelected = new Counter();
+    private final Counter tryQueueWaiting = new Counter();
+    private final Timer scriptEvaluation = newTimer();
+
+    private final ConcurrentMap<String, Timer> labelWaits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> resourceWaits = new ConcurrentHashMap<>();
+
+    private final MetricSet metricSet;
+
+    public LockableResourcesMetricProvider() {
+        final Map<String, Metric> metrics = new LinkedHashMap<>();
+        metrics.put(PREFIX + "lock.wait", this.lockWait);
+        metrics.put(PREFIX + "sync.wait", this.syncWait);
+        metrics.put(PREFIX + "sync.held", this.syncHeld);
+        if (SYNC_BLOCKED) {
+            metrics.put(PREFIX + "sync.blocked", new BlockedThreads());
+        }
+        metrics.put(PREFIX + "save.duration", this.saveDuration);
+        metrics.put(PREFIX + "save.bytes", this.saveBytes);
+        metrics.put(PREFIX + "queue.size", (Gauge<Integer>) () -> LockableResourcesManager.get()
+                .getQueuedContextCount());
+        metrics.put(PREFIX + "queue.oldest", (Gauge<Long>) LockableResourcesMetricProvider::oldestQueuedMillis);
+        metrics.put(PREFIX + "tryQueue.selected", this.tryQueueSelected);
+        metrics.put(PREFIX + "tryQueue.waiting", this.tryQueueWaiting);
+        metrics.put(PREFIX + "candidates.hitRate", (Gauge<Double>) () -> LockableResourcesManager.get()
+                .getCachedCandidatesStats()
+                .hitRate());
+        metrics.put(PREFIX + "script.evaluation", this.scriptEvaluation);
+        final Map<String, Metric> unmodifiable = Collections.unmodifiableMap(metrics);
+        this.metricSet = () -> unmodifiable;
+
+        PluginMetrics.setRecorder(this);
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    @Override
+    public MetricSet getMetricSet() {
+        return this.metricSet;
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void lockWait(final long millis) {
+        this.lockWait.update(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void labelWait(@NonNull final String label, final long millis) {
+        waitTimer(this.labelWaits, "lock.wait.label.", label).update(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void resourceWait(@NonNull final String resource, final long millis) {
+        if (!PER_RESOURCE) {
+            return;
+        }
+        waitTimer(this.resourceWaits, "lock.wait.resource.", resource).update(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void syncHeld(final long waitNanos, final long heldNanos) {
+        this.syncWait.update(waitNanos, TimeUnit.NANOSECONDS);
+        this.syncHeld.update(heldNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void saved(final long nanos, final long bytes) {
+        this.saveDuration.update(nanos, TimeUnit.NANOSECONDS);
+        this.saveBytes.update(bytes);
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void tryQueue(final boolean selected) {
+        (selected ? this.tryQueueSelected : this.tryQueueWaiting).inc();
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public void scriptEvaluated(final long nanos) {
+        this.scriptEvaluation.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the timer of given label / resource, registers it in the global registry on first use. */
+    @NonNull
+    private static Timer waitTimer(final ConcurrentMap<String, Timer> timers, final String prefix, final String key) {
+        // plain look-up first, computeIfAbsent allocates the lambda
+        final Timer timer = timers.get(key);
+        if (timer != null) {
+            return timer;
+        }
+        return timers.computeIfAbsent(key, k -> Metrics.metricRegistry()
+                .timer(PREFIX + prefix + k, LockableResourcesMetricProvider::newTimer));
+    }
+
+    // ---------------------------------------------------------------------------
+    private static Timer newTimer() {
+        return new Timer(new SlidingTimeWindowArrayReservoir(5, TimeUnit.MINUTES));
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Age of the oldest queued lock step in milliseconds. */
+    private static long oldestQueuedMillis() {
+        final long oldest = LockableResourcesManager.get().getOldestQueuedAt();
+        return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Amount of threads waiting for {@link LockableResourcesManager#syncResources}, on all code paths.
+     * Takes a thread dump, therefore it is computed at most every 10 seconds.
+     */
+    private static final class BlockedThreads extends CachedGauge<Integer> {
+        BlockedThreads() {
+            super(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected Integer loadValue() {
+            final int monitor = System.identityHashCode(LockableResourcesManager.syncResources);
+            int blocked = 0;
+            for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(false, false)) {
+                if (info != null
+                        && info.getThreadState() == Thread.State.BLOCKED
+                        && info.getLockInfo() != null
+                        && info.getLockInfo().getIdentityHashCode() == monitor) {
+                    blocked++;
+                }
+            }
+            return blocked;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang.StringUtils;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.util.LabelExpressionCache;
+
+// -----------------------------------------------------------------------------
+/**
+ * Reverse index from resource name and label to the queued contexts, which are waiting for it.
+ *
+ * <p>When resources are unlocked, only the contexts which could use one of them need to be
+ * re-evaluated. Contexts whose requirements can not be mapped to names or labels (label expressions
+ * with negation, groovy scripts) are returned for each look-up.
+ *
+ * <p>Not thread safe, all calls are guarded by {@link LockableResourcesManager#syncResources}.
+ */
+final class QueueWakeupIndex {
+
+    private static final String NAME_KEY = "name:";
+    private static final String LABEL_KEY = "label:";
+
+    private final Map<String, Set<QueuedContextStruct>> waitersByKey = new HashMap<>();
+
+    /** Keys of each registered context, needed to remove it again. */
+    private final Map<QueuedContextStruct, Set<String>> keysByWaiter = new HashMap<>();
+
+    /** Contexts, which shall be re-evaluated on each unlock. */
+    private final Set<QueuedContextStruct> unindexedWaiters = new HashSet<>();
+
+    // ---------------------------------------------------------------------------
+    void add(@NonNull final QueuedContextStruct entry) {
+        if (this.keysByWaiter.containsKey(entry) || this.unindexedWaiters.contains(entry)) {
+            return;
+        }
+        final Set<String> keys = getKeys(entry);
+        if (keys == null) {
+            this.unindexedWaiters.add(entry);
+            return;
+        }
+        this.keysByWaiter.put(entry, keys);
+        for (String key : keys) {
+            this.waitersByKey.computeIfAbsent(key, k -> new HashSet<>()).add(entry);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    void remove(@NonNull final QueuedContextStruct entry) {
+        if (this.unindexedWaiters.remove(entry)) {
+            return;
+        }
+        final Set<String> keys = this.keysByWaiter.remove(entry);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            Set<QueuedContextStruct> waiters = this.waitersByKey.get(key);
+            if (waiters != null) {
+                waiters.remove(entry);
+                if (waiters.isEmpty()) {
+                    this.waitersByKey.remove(key);
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    void rebuild(@NonNull final Collection<QueuedContextStruct> queue) {
+        this.waitersByKey.clear();
+        this.keysByWaiter.clear();
+        this.unindexedWaiters.clear();
+        for (QueuedContextStruct entry : queue) {
+            this.add(entry);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the keys, under which requirements matching the *resource* are indexed. */
+    @NonNull
+    static List<String> getKeys(@NonNull final LockableResource resource) {
+        final List<String> labels = resource.getLabelsAsList();
+        final List<String> keys = new ArrayList<>(labels.size() + 1);
+        keys.add(NAME_KEY + resource.getName());
+        for (String label : labels) {
+            keys.add(LABEL_KEY + label);
+        }
+        return keys;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the keys of a requirement by *label* expression, or null when it can not be indexed. */
+    @CheckForNull
+    static Set<String> getLabelKeys(@NonNull final String label) {
+        final Set<String> keys = new HashSet<>();
+        return addLabelKeys(label.trim(), keys) ? keys : null;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns all contexts, which might be started now, when given *resources* are free. */
+    @NonNull
+    Set<QueuedContextStruct> getWaitersFor(@NonNull final Collection<LockableResource> resources) {
+        Set<QueuedContextStruct> waiters = new HashSet<>(this.unindexedWaiters);
+        for (LockableResource resource : resources) {
+            for (String key : getKeys(resource)) {
+                this.collect(key, waiters);
+            }
+        }
+        return waiters;
+    }
+
+    // ---------------------------------------------------------------------------
+    private void collect(final String key, final Set<QueuedContextStruct> waiters) {
+        Set<QueuedContextStruct> found = this.waitersByKey.get(key);
+        if (found != null) {
+            waiters.addAll(found);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns index keys of the given *entry*, or null when it can not be indexed. */
+    @CheckForNull
+    private static Set<String> getKeys(@NonNull final QueuedContextStruct entry) {
+        final List<LockableResourcesStruct> requirements = entry.getResources();
+        if (requirements == null) {
+            return null;
+        }
+        Set<String> keys = new HashSet<>();
+        for (LockableResourcesStruct requirement : requirements) {
+            if (requirement.getResourceMatchScriptText() != null) {
+                return null;
+            }
+            if (!StringUtils.isBlank(requirement.label)) {
+                if (!addLabelKeys(requirement.label.trim(), keys)) {
+                    return null;
+                }
+            } else if (requirement.required != null) {
+                for (LockableResource resource : requirement.required) {
+                    keys.add(NAME_KEY + resource.getName());
+                }
+            }
+        }
+        return keys;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Adds keys for all atoms of the *label* expression. Only possible for expressions without
+     * negation, because a resource can only match them when it carries one of the atoms.
+     */
+    private static boolean addLabelKeys(final String label, final Set<String> keys) {
+        // exact match, see LockableResourcesManager.getResourcesWithLabel()
+        keys.add(LABEL_KEY + label);
+        final Label expression;
+        try {
+            expression = LabelExpressionCache.parse(label);
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+        return expression.accept(new AtomCollector(), keys);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Collects the atoms of a label expression, returns false when the expression contains negation. */
+    private static final class AtomCollector extends LabelVisitor<Boolean, Set<String>> {
+
+        @Override
+        public Boolean onAtom(LabelAtom a, Set<String> keys) {
+            keys.add(LABEL_KEY + a.getName());
+            return true;
+        }
+
+        @Override
+        public Boolean onParen(LabelExpression.Paren p, Set<String> keys) {
+            return p.base.accept(this, keys);
+        }
+
+        @Override
+        public Boolean onNot(LabelExpression.Not p, Set<String> keys) {
+            return false;
+        }
+
+        @Override
+        public Boolean onAnd(LabelExpression.And p, Set<String> keys) {
+            return p.lhs.accept(this, keys) && p.rhs.accept(this, keys);
+        }
+
+        @Override
+        public Boolean onOr(LabelExpression.Or p, Set<String> keys) {
+            return p.lhs.accept(this, keys) && p.rhs.accept(this, keys);
+        }
+
+        @Override
+        public Boolean onIff(LabelExpression.Iff p, Set<String> keys) {
+            return false;
+        }
+
+        @Override
+        public Boolean onImplies(LabelExpression.Implies p, Set<String> keys) {
+            return false;
+        }
+    }
+}
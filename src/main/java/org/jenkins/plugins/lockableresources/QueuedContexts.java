@@ -0,0 +1,346 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+// -----------------------------------------------------------------------------
+/**
+ * Queue of the contexts waiting in {@code lock()} step.
+ *
+ * <p>Each entry has a rank, the queue order is the order of the ranks. New ranks are chosen between
+ * the neighbours, so insert, remove and reorder are O(log n) and the existing entries are only
+ * renumbered when there is no gap left. Entries can be found by its step context and by id in O(1).
+ *
+ * <p>Not thread safe, all calls are guarded by {@link LockableResourcesManager#syncResources}. Only
+ * {@link #publishedSize()} and {@link #publishedOldestQueuedAt()} can be read without it, they are
+ * published on each change (for the metrics and for {@link LockableResourcesManager#tryLockFree}).
+ */
+final class QueuedContexts implements Iterable<QueuedContextStruct> {
+
+    /** Distance between two ranks, when the entries are appended or renumbered. */
+    private static final long GAP = 1L << 20;
+
+    private final TreeMap<Long, QueuedContextStruct> byRank = new TreeMap<>();
+    private final Map<QueuedContextStruct, Long> rankByEntry = new HashMap<>();
+    private final Map<String, QueuedContextStruct> byId = new HashMap<>();
+    private final Map<StepContext, QueuedContextStruct> byContext = new IdentityHashMap<>();
+
+    /** Ranks of the entries by priority, to find the insert position of a new entry. */
+    private final TreeMap<Integer, TreeSet<Long>> ranksByPriority = new TreeMap<>();
+
+    /** Amount of entries by the time they were queued, to find the oldest one in O(log n). */
+    private final TreeMap<Long, Integer> queuedAtCounts = new TreeMap<>();
+
+    /** Amount of entries, published on each change. */
+    private volatile int publishedSize = 0;
+
+    /** The oldest {@link #queuedAt(QueuedContextStruct)} of all entries, published on each change. */
+    private volatile long publishedOldestQueuedAt = 0;
+
+    // ---------------------------------------------------------------------------
+    int size() {
+        return this.byRank.size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** The same as {@link #size()}, but it can be read without holding the lock. */
+    int publishedSize() {
+        return this.publishedSize;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Time (epoch millis), the oldest entry has been queued, or 0. Can be read without the lock. */
+    long publishedOldestQueuedAt() {
+        return this.publishedOldestQueuedAt;
+    }
+
+    // ---------------------------------------------------------------------------
+    boolean isEmpty() {
+        return this.byRank.isEmpty();
+    }
+
+    // ---------------------------------------------------------------------------
+    boolean contains(@NonNull final QueuedContextStruct entry) {
+        return this.rankByEntry.containsKey(entry);
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    QueuedContextStruct getByContext(@CheckForNull final StepContext context) {
+        return this.byContext.get(context);
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    QueuedContextStruct getById(@CheckForNull final String id) {
+        return this.byId.get(id);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Adds new entry behind the last entry with the same or higher priority. With
+     * *inversePrecedence* (and default priority) the entry is added at the begin of the queue.
+     */
+    void add(@NonNull final QueuedContextStruct entry, final boolean inversePrecedence) {
+        if (inversePrecedence && entry.getPriority() == 0) {
+            this.insertAfter(null, entry);
+            return;
+        }
+        Long after = null;
+        for (TreeSet<Long> ranks : this.ranksByPriority.tailMap(entry.getPriority(), true).values()) {
+            final Long last = ranks.last();
+            if (after == null || last > after) {
+                after = last;
+            }
+        }
+        this.insertAfter(after, entry);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Adds the entry at the end of the queue. */
+    void addLast(@NonNull final QueuedContextStruct entry) {
+        this.insertAfter(this.byRank.isEmpty() ? null : this.byRank.lastKey(), entry);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Adds the entry behind the entry with id *previousId* (null for the begin of the queue). Used to
+     * replay the journal. When the previous entry is not queued (anymore), the entry is added by its
+     * priority like {@link #add}.
+     */
+    void addAfter(@CheckForNull final String previousId, @NonNull final QueuedContextStruct entry) {
+        if (previousId == null) {
+            this.insertAfter(null, entry);
+            return;
+        }
+        final QueuedContextStruct previous = this.byId.get(previousId);
+        final Long rank = previous == null ? null : this.rankByEntry.get(previous);
+        if (rank == null) {
+            this.add(entry, false);
+            return;
+        }
+        this.insertAfter(rank, entry);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the entry in front of given one, or null when it is the first one (or not queued). */
+    @CheckForNull
+    QueuedContextStruct previous(@NonNull final QueuedContextStruct entry) {
+        final Long rank = this.rankByEntry.get(entry);
+        if (rank == null) {
+            return null;
+        }
+        final Map.Entry<Long, QueuedContextStruct> lower = this.byRank.lowerEntry(rank);
+        return lower == null ? null : lower.getValue();
+    }
+
+    // ---------------------------------------------------------------------------
+    boolean remove(@NonNull final QueuedContextStruct entry) {
+        final Long rank = this.rankByEntry.remove(entry);
+        if (rank == null) {
+            return false;
+        }
+        this.byRank.remove(rank);
+        this.byId.remove(entry.getId(), entry);
+        if (entry.getContext() != null) {
+            this.byContext.remove(entry.getContext(), entry);
+        }
+        this.removeRank(entry.getPriority(), rank);
+        this.countQueuedAt(entry, -1);
+        this.publish();
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns position of the entry in the queue, or -1. O(n) in worst case, do not use it in loops. */
+    int indexOf(@NonNull final QueuedContextStruct entry) {
+        final Long rank = this.rankByEntry.get(entry);
+        return rank == null ? -1 : this.byRank.headMap(rank, false).size();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns entry at given *position*. O(n), used only by manual queue changes. */
+    @CheckForNull
+    QueuedContextStruct get(final int position) {
+        if (position < 0 || position >= this.size()) {
+            return null;
+        }
+        Iterator<QueuedContextStruct> iter = this.byRank.values().iterator();
+        for (int i = 0; i < position; i++) {
+            iter.next();
+        }
+        return iter.next();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Exchanges positions of both entries. */
+    void swap(@NonNull final QueuedContextStruct a, @NonNull final QueuedContextStruct b) {
+        final Long rankA = this.rankByEntry.get(a);
+        final Long rankB = this.rankByEntry.get(b);
+        if (rankA == null || rankB == null || a == b) {
+            return;
+        }
+        this.removeRank(a.getPriority(), rankA);
+        this.removeRank(b.getPriority(), rankB);
+        this.put(rankB, a);
+        this.put(rankA, b);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns given entries (those still queued) in queue order. */
+    @NonNull
+    List<QueuedContextStruct> inQueueOrder(@NonNull final Collection<QueuedContextStruct> entries) {
+        List<QueuedContextStruct> list = new ArrayList<>(entries.size());
+        for (QueuedContextStruct entry : entries) {
+            if (this.contains(entry)) {
+                list.add(entry);
+            }
+        }
+        list.sort(Comparator.comparing(this.rankByEntry::get));
+        return list;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns copy of the queue. */
+    @NonNull
+    List<QueuedContextStruct> toList() {
+        return new ArrayList<>(this.byRank.values());
+    }
+
+    // ---------------------------------------------------------------------------
+    void clear() {
+        this.byRank.clear();
+        this.rankByEntry.clear();
+        this.byId.clear();
+        this.byContext.clear();
+        this.ranksByPriority.clear();
+        this.queuedAtCounts.clear();
+        this.publish();
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    @Override
+    public Iterator<QueuedContextStruct> iterator() {
+        return Collections.unmodifiableCollection(this.byRank.values()).iterator();
+    }
+
+    // ---------------------------------------------------------------------------
+    private void insertAfter(@CheckForNull final Long after, @NonNull final QueuedContextStruct entry) {
+        if (this.contains(entry)) {
+            return;
+        }
+        final Long next = after == null
+                ? (this.byRank.isEmpty() ? null : this.byRank.firstKey())
+                : this.byRank.higherKey(after);
+
+        long rank;
+        if (after == null && next == null) {
+            rank = 0;
+        } else if (after == null) {
+            rank = next - GAP;
+        } else if (next == null) {
+            rank = after + GAP;
+        } else if (next - after > 1) {
+            rank = after + (next - after) / 2;
+        } else {
+            // no gap left, renumber and try again
+            final QueuedContextStruct previous = this.byRank.get(after);
+            this.renumber();
+            this.insertAfter(this.rankByEntry.get(previous), entry);
+            return;
+        }
+        this.put(rank, entry);
+        this.byId.put(entry.getId(), entry);
+        if (entry.getContext() != null) {
+            this.byContext.put(entry.getContext(), entry);
+        }
+        this.countQueuedAt(entry, 1);
+        this.publish();
+    }
+
+    // ---------------------------------------------------------------------------
+    private void publish() {
+        this.publishedSize = this.byRank.size();
+        this.publishedOldestQueuedAt = this.queuedAtCounts.isEmpty() ? 0 : this.queuedAtCounts.firstKey();
+    }
+
+    // ---------------------------------------------------------------------------
+    private void countQueuedAt(final QueuedContextStruct entry, final int delta) {
+        final long queuedAt = queuedAt(entry);
+        if (queuedAt > 0) {
+            this.queuedAtCounts.merge(queuedAt, delta, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the time (epoch millis) the lock step of *entry* has been queued, or 0 when unknown. */
+    static long queuedAt(final QueuedContextStruct entry) {
+        long queuedAt = 0;
+        final List<LockableResourcesStruct> resources = entry.getResources();
+        for (int i = 0; i < resources.size(); i++) {
+            final long at = resources.get(i).queuedAt;
+            if (at > 0 && (queuedAt == 0 || at < queuedAt)) {
+                queuedAt = at;
+            }
+        }
+        return queuedAt;
+    }
+
+    // ---------------------------------------------------------------------------
+    private void put(final long rank, final QueuedContextStruct entry) {
+        this.byRank.put(rank, entry);
+        this.rankByEntry.put(entry, rank);
+        this.ranksByPriority
+                .computeIfAbsent(entry.getPriority(), p -> new TreeSet<>())
+                .add(rank);
+    }
+
+    // ---------------------------------------------------------------------------
+    private void removeRank(final int priority, final long rank) {
+        final TreeSet<Long> ranks = this.ranksByPriority.get(priority);
+        if (ranks != null) {
+            ranks.remove(rank);
+            if (ranks.isEmpty()) {
+                this.ranksByPriority.remove(priority);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Spreads the ranks again with {@link #GAP}. */
+    private void renumber() {
+        final NavigableMap<Long, QueuedContextStruct> old = new TreeMap<>(this.byRank);
+        this.byRank.clear();
+        this.rankByEntry.clear();
+        this.ranksByPriority.clear();
+        long rank = 0;
+        for (QueuedContextStruct entry : old.values()) {
+            this.put(rank, entry);
+            rank += GAP;
+        }
+    }
+}
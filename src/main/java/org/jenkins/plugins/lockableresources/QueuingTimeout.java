@@ -0,0 +1,38 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+// -----------------------------------------------------------------------------
+/**
+ * Frees the resources, which were queued for a queue item, but not locked within {@link
+ * LockableResource#QUEUE_TIMEOUT} seconds. The resources are checked 6 times per timeout period, so
+ * the reads of the queued state do not need to check the time.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class QueuingTimeout extends PeriodicWork {
+
+    // ---------------------------------------------------------------------------
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(Math.max(1, LockableResource.QUEUE_TIMEOUT / 6));
+    }
+
+    // ---------------------------------------------------------------------------
+    @Override
+    protected void doRun() {
+        LockableResourcesManager.get().unqueueExpired();
+    }
+}
@@ -0,0 +1,109 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+// -----------------------------------------------------------------------------
+/**
+ * Striped locks guarding the lock state (build, reservation, queue item) of the resources.
+ *
+ * <p>Each resource name is mapped to one of the stripes. Several resources are always locked in the
+ * order of the stripe index, so two threads locking overlapping sets of resources can not deadlock.
+ * The lock order against the other monitors of {@link LockableResourcesManager} is:
+ *
+ * <ol>
+ *   <li>{@link LockableResourcesManager#syncResources} (structure of the resources, the queue and
+ *       the caches), when it is needed at all
+ *   <li>the stripes
+ *   <li>the leaf monitors (snapshot, label counters, change feed, statistics), which never take
+ *       any other lock
+ * </ol>
+ *
+ * <p>So a thread holding stripes must never wait for {@code syncResources}.
+ */
+final class ResourceLocks {
+
+    private final ReentrantLock[] stripes;
+
+    // ---------------------------------------------------------------------------
+    ResourceLocks(final int amount) {
+        // power of two, so the stripe is a mask of the hash
+        final int size = Integer.highestOneBit(Math.max(1, amount - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    int stripeOf(@NonNull final String name) {
+        final int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & (this.stripes.length - 1);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Locks the stripes of all *resources* in ascending order. The returned handle unlocks them in
+     * reverse order, use it in try-with-resources.
+     */
+    @NonNull
+    Held lock(@NonNull final Collection<LockableResource> resources) {
+        final int[] indexes = new int[resources.size()];
+        int count = 0;
+        for (LockableResource resource : resources) {
+            indexes[count++] = this.stripeOf(resource.getName());
+        }
+        Arrays.sort(indexes);
+        // the same stripe only once
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || indexes[unique - 1] != indexes[i]) {
+                indexes[unique++] = indexes[i];
+            }
+        }
+        final ReentrantLock[] held = new ReentrantLock[unique];
+        for (int i = 0; i < unique; i++) {
+            held[i] = this.stripes[indexes[i]];
+            held[i].lock();
+        }
+        return new Held(held);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Locks all stripes, used while the resources are re-indexed. */
+    @NonNull
+    Held lockAll() {
+        for (ReentrantLock stripe : this.stripes) {
+            stripe.lock();
+        }
+        return new Held(this.stripes.clone());
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Stripes locked by {@link #lock(Collection)}. */
+    static final class Held implements AutoCloseable {
+
+        private final ReentrantLock[] held;
+
+        private Held(final ReentrantLock[] held) {
+            this.held = held;
+        }
+
+        @Override
+        public void close() {
+            for (int i = this.held.length - 1; i >= 0; i--) {
+                this.held[i].unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+// -----------------------------------------------------------------------------
+/**
+ * In-memory usage statistics of the resources and labels over a sliding window: busy and idle
+ * time, amount of locks, how often and how long the lock steps waited (percentiles) and which jobs
+ * blocked them most.
+ *
+ * <p>The window is split into two halves. Each resource and each requested label keeps the current
+ * and the previous half only, so the memory does not grow with the amount of locks. The reported
+ * window therefore covers between one half and the whole window length.
+ *
+ * <p>The wait times are counted in a histogram with logarithmic buckets, 8 buckets per power of
+ * two. The reported percentiles are the upper bounds of the buckets (at most 12.5% above the real
+ * value).
+ */
+@Restricted(NoExternalUse.class)
+public final class ResourceStatistics {
+
+    /** Amount of blockers kept per resource and label. */
+    static final int TOP_BLOCKERS = 5;
+
+    private final long halfWindow;
+
+    /** Creation time, there is no idle time before. */
+    private final long startedAt;
+
+    /** Changed under this monitor, read without it by {@link #resourceChanged(LockableResource)}. */
+    private final Map<String, Usage> resources = new ConcurrentHashMap<>();
+    private final Map<String, Usage> labels = new HashMap<>();
+
+    ResourceStatistics(final long windowMillis, final long now) {
+        this.halfWindow = Math.max(1, windowMillis / 2);
+        this.startedAt = now;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Length of the whole window in milliseconds. */
+    public long getWindowMillis() {
+        return this.halfWindow * 2;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called, when the *build* locked the *resource*. */
+    void locked(@NonNull final LockableResource resource, @NonNull final Run<?, ?> build) {
+        this.locked(resource.getName(), build.getParent().getFullName(), System.currentTimeMillis());
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void locked(final String resource, final String job, final long now) {
+        final Usage usage = this.resources.computeIfAbsent(resource, k -> new Usage());
+        // unlocked on a path, which did not report it
+        usage.closeBusy(now, this.halfWindow);
+        usage.current(now, this.halfWindow).locks++;
+        usage.lockedSince = now;
+        usage.holder = job;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called on each change of the *resource*, finishes the busy time when it is not locked any more. */
+    void resourceChanged(@NonNull final LockableResource resource) {
+        // the id only, the build might have to be loaded from disk
+        if (resource.getBuildExternalizableId() != null) {
+            return;
+        }
+        // most changes do not end a busy time, they shall not wait for the monitor
+        final Usage usage = this.resources.get(resource.getName());
+        if (usage != null && usage.lockedSince > 0) {
+            this.unlocked(resource.getName(), System.currentTimeMillis());
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void unlocked(final String resource, final long now) {
+        final Usage usage = this.resources.get(resource);
+        if (usage != null && usage.lockedSince > 0) {
+            usage.closeBusy(now, this.halfWindow);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Called, when the lock step *context* has to wait for its resources. */
+    void queued(@NonNull final QueuedContextStruct context) {
+        this.queued(context.getResources(), System.currentTimeMillis());
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized void queued(final List<LockableResourcesStruct> requirements, final long now) {
+        for (LockableResourcesStruct struct : requirements) {
+            if (struct.label != null && !struct.label.isEmpty()) {
+                this.labels.computeIfAbsent(struct.label, k -> new Usage()).current(now, this.halfWindow).queued++;
+            } else if (struct.required != null) {
+                for (LockableResource resource : struct.required) {
+                    this.resources
+                            .computeIfAbsent(resource.getName(), k -> new Usage())
+                            .current(now, this.halfWindow)
+                            .queued++;
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Called, when the lock step got the *locked* resources for the *requirements* after
+     * *waitMillis*. The previous holders of the resources are the blockers of this lock.
+     */
+    synchronized void acquired(
+            @NonNull final List<LockableResourcesStruct> requirements,
+            @NonNull final List<LockableResource> locked,
+            final long waitMillis,
+            final long now) {
+        final List<String> blockers = new ArrayList<>();
+        for (LockableResource resource : locked) {
+            final Usage usage = this.resources.computeIfAbsent(resource.getName(), k -> new Usage());
+            final Period period = usage.current(now, this.halfWindow);
+            period.waits.record(waitMillis);
+            if (waitMillis > 0 && usage.previousHolder != null) {
+                period.blockers.add(usage.previousHolder, waitMillis);
+                if (!blockers.contains(usage.previousHolder)) {
+                    blockers.add(usage.previousHolder);
+                }
+            }
+        }
+        for (LockableResourcesStruct struct : requirements) {
+            if (struct.label == null || struct.label.isEmpty()) {
+                continue;
+            }
+            final Period period =
+                    this.labels.computeIfAbsent(struct.label, k -> new Usage()).current(now, this.halfWindow);
+            period.locks++;
+            period.waits.record(waitMillis);
+            for (String blocker : blockers) {
+                period.blockers.add(blocker, waitMillis);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns the statistics of given *existing* resources (read-only copies are fine) and of the
+     * labels as JSON. Statistics of removed resources are dropped.
+     */
+    @NonNull
+    public JSONObject toJson(@NonNull final List<LockableResource> existing) {
+        return this.toJson(existing, System.currentTimeMillis());
+    }
+
+    // ---------------------------------------------------------------------------
+    synchronized JSONObject toJson(final List<LockableResource> existing, final long now) {
+        final Map<String, LockableResource> byName = new HashMap<>();
+        for (LockableResource resource : existing) {
+            byName.put(resource.getName(), resource);
+        }
+        this.resources.keySet().retainAll(byName.keySet());
+
+        final long windowStart = Math.max(this.startedAt, windowStart(now, this.halfWindow) - this.halfWindow);
+        final long elapsed = Math.max(1, now - windowStart);
+
+        // the labels of the resources, plus the requested labels (label expressions)
+        final Map<String, Summary> labelSummaries = new TreeMap<>();
+        final JSONArray resourcesJson = new JSONArray();
+        for (LockableResource resource : existing) {
+            final Usage usage = this.resources.get(resource.getName());
+            final Summary summary = usage == null ? new Summary() : usage.summary(now, this.halfWindow);
+            summary.capacity = elapsed;
+            resourcesJson.add(summary.toJson("name", resource.getName()));
+            for (String label : resource.getLabelsAsList()) {
+                final Summary labelSummary = labelSummaries.computeIfAbsent(label, k -> new Summary());
+                labelSummary.resources++;
+                labelSummary.capacity += elapsed;
+                labelSummary.busy += summary.busy;
+            }
+        }
+        for (Map.Entry<String, Usage> entry : this.labels.entrySet()) {
+            final Summary requested = entry.getValue().summary(now, this.halfWindow);
+            final Summary labelSummary = labelSummaries.computeIfAbsent(entry.getKey(), k -> new Summary());
+            labelSummary.locks = requested.locks;
+            labelSummary.queued = requested.queued;
+            labelSummary.waits = requested.waits;
+            labelSummary.blockers = requested.blockers;
+        }
+        final JSONArray labelsJson = new JSONArray();
+        for (Map.Entry<String, Summary> entry : labelSummaries.entrySet()) {
+            labelsJson.add(entry.getValue().toJson("label", entry.getKey()));
+        }
+
+        final JSONObject json = new JSONObject();
+        json.put("windowStart", windowStart);
+        json.put("window", elapsed);
+        json.put("resources", resourcesJson);
+        json.put("labels", labelsJson);
+        return json;
+    }
+
+    // ---------------------------------------------------------------------------
+    private static long windowStart(final long now, final long halfWindow) {
+        return now - Math.floorMod(now, halfWindow);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Usage of one resource or one requested label, the current and the previous half of the window. */
+    private static final class Usage {
+        private Period previous;
+        private Period current;
+
+        /** Resource is locked since, 0 when free. Written under the monitor, read without it. */
+        private volatile long lockedSince = 0;
+
+        /** Job holding the resource currently. */
+        private String holder;
+
+        /** Job which held the resource last time, it blocked the next lock step waiting for it. */
+        private String previousHolder;
+
+        Period current(final long now, final long halfWindow) {
+            final long start = windowStart(now, halfWindow);
+            if (this.current == null || this.current.start < start - halfWindow) {
+                this.previous = new Period(start - halfWindow);
+                this.current = new Period(start);
+            } else if (this.current.start < start) {
+                this.previous = this.current;
+                this.current = new Period(start);
+            }
+            return this.current;
+        }
+
+        /** Adds the busy time since {@link #lockedSince} to the periods. */
+        void closeBusy(final long now, final long halfWindow) {
+            if (this.lockedSince <= 0) {
+                return;
+            }
+            this.current(now, halfWindow);
+            this.previous.addBusy(this.lockedSince, now, halfWindow);
+            this.current.addBusy(this.lockedSince, now, halfWindow);
+            this.lockedSince = 0;
+            this.previousHolder = this.holder;
+            this.holder = null;
+        }
+
+        Summary summary(final long now, final long halfWindow) {
+            final Summary summary = new Summary();
+            this.current(now, halfWindow);
+            for (Period period : new Period[] {this.previous, this.current}) {
+                summary.busy += period.busy;
+                if (this.lockedSince > 0) {
+                    // still locked
+                    summary.busy += period.overlap(this.lockedSince, now, halfWindow);
+                }
+                summary.locks += period.locks;
+                summary.queued += period.queued;
+                summary.waits.add(period.waits);
+                summary.blockers.add(period.blockers);
+            }
+            return summary;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Counters of one half of the window. */
+    private static final class Period {
+        private final long start;
+        private long busy = 0;
+        private int locks = 0;
+        private int queued = 0;
+        private final WaitHistogram waits = new WaitHistogram();
+        private final Blockers blockers = new Blockers();
+
+        Period(final long start) {
+            this.start = start;
+        }
+
+        long overlap(final long from, final long to, final long halfWindow) {
+            return Math.max(0, Math.min(to, this.start + halfWindow) - Math.max(from, this.start));
+        }
+
+        void addBusy(final long from, final long to, final long halfWindow) {
+            this.busy += this.overlap(from, to, halfWindow);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Merged periods of one resource or label. */
+    private static final class Summary {
+        private int resources = 0;
+        private long capacity = 0;
+        private long busy = 0;
+        private int locks = 0;
+        private int queued = 0;
+        private WaitHistogram waits = new WaitHistogram();
+        private Blockers blockers = new Blockers();
+
+        JSONObject toJson(final String key, final String name) {
+            final JSONObject json = new JSONObject();
+            json.put(key, name);
+            if (this.resources > 0) {
+                json.put("resources", this.resources);
+            }
+            final long busyTime = Math.min(this.busy, this.capacity);
+            json.put("busy", busyTime);
+            json.put("idle", this.capacity - busyTime);
+            json.put("utilization", this.capacity == 0 ? 0 : (int) (busyTime * 100 / this.capacity));
+            json.put("locks", this.locks);
+            json.put("queued", this.queued);
+            json.put("wait", this.waits.toJson());
+            json.put("blockers", this.blockers.toJson());
+            return json;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Histogram of the wait times in milliseconds with logarithmic buckets. */
+    static final class WaitHistogram {
+        /** 2^SUB_BITS buckets per power of two. */
+        private static final int SUB_BITS = 3;
+
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        /** Longer waits (more than 2 years) are counted in the last bucket. */
+        private static final int MAX_EXPONENT = 40;
+
+        private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+        /** Allocated on the first record, most of the resources never wait. */
+        @CheckForNull
+        private int[] counts;
+
+        private long count = 0;
+        private long max = 0;
+
+        void record(final long millis) {
+            if (this.counts == null) {
+                this.counts = new int[BUCKETS];
+            }
+            this.counts[bucket(millis)]++;
+            this.count++;
+            this.max = Math.max(this.max, millis);
+        }
+
+        void add(final WaitHistogram other) {
+            if (other.counts == null) {
+                return;
+            }
+            if (this.counts == null) {
+                this.counts = new int[BUCKETS];
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                this.counts[i] += other.counts[i];
+            }
+            this.count += other.count;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        /** Returns (the upper bound of) the value below which *percent* of the waits are. */
+        long percentile(final double percent) {
+            if (this.counts == null || this.count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(this.count * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            json.put("count", this.count);
+            json.put("p50", this.percentile(50));
+            json.put("p90", this.percentile(90));
+            json.put("p99", this.percentile(99));
+            json.put("max", this.max);
+            return json;
+        }
+
+        static int bucket(final long millis) {
+            if (millis < SUB_COUNT) {
+                return (int) Math.max(0, millis);
+            }
+            final int exponent = Math.min(63 - Long.numberOfLeadingZeros(millis), MAX_EXPONENT);
+            if (exponent == MAX_EXPONENT && millis >= (1L << (MAX_EXPONENT + 1))) {
+                return BUCKETS - 1;
+            }
+            final int sub = (int) (millis >> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+        }
+
+        static long upperBound(final int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            final int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+            final int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+            return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * The jobs, which blocked the waiting lock steps the longest time. Keeps {@link #TOP_BLOCKERS}
+     * entries only: a new job replaces the smallest one and takes over its time (space-saving), so
+     * the times of the top entries are upper bounds.
+     */
+    static final class Blockers {
+        private final String[] jobs = new String[TOP_BLOCKERS];
+        private final long[] millis = new long[TOP_BLOCKERS];
+
+        void add(final String job, final long waitMillis) {
+            int smallest = 0;
+            for (int i = 0; i < TOP_BLOCKERS; i++) {
+                if (this.jobs[i] == null || this.jobs[i].equals(job)) {
+                    this.jobs[i] = job;
+                    this.millis[i] += waitMillis;
+                    return;
+                }
+                if (this.millis[i] < this.millis[smallest]) {
+                    smallest = i;
+                }
+            }
+            this.jobs[smallest] = job;
+            this.millis[smallest] += waitMillis;
+        }
+
+        void add(final Blockers other) {
+            for (int i = 0; i < TOP_BLOCKERS && other.jobs[i] != null; i++) {
+                this.add(other.jobs[i], other.millis[i]);
+            }
+        }
+
+        JSONArray toJson() {
+            final List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < TOP_BLOCKERS && this.jobs[i] != null; i++) {
+                order.add(i);
+            }
+            order.sort((a, b) -> Long.compare(this.millis[b], this.millis[a]));
+            final JSONArray json = new JSONArray();
+            for (int i : order) {
+                final JSONObject blocker = new JSONObject();
+                blocker.put("job", this.jobs[i]);
+                blocker.put("wait", this.millis[i]);
+                json.add(blocker);
+            }
+            return json;
+        }
+    }
+}
@@ -25,15 +25,22 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
+import org.jenkins.plugins.lockableresources.ChangeFeed;
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.Messages;
+import org.jenkins.plugins.lockableresources.ResourceStatistics;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.util.Constants;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -84,6 +91,12 @@ public class LockableResourcesRootAction implements RootAction {
 
     public static final String ICON = "symbol-lock-closed";
 
+    /** Maximal wait time of {@link #doChanges} in seconds. */
+    private static final int MAX_CHANGES_TIMEOUT = 60;
+
+    private static final int SERVER_SIDE_TABLE_THRESHOLD =
+            SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_SERVER_SIDE_TABLE_THRESHOLD, 1000);
+
     @Override
     public String getIconFileName() {
         return Jenkins.get().hasPermission(VIEW) ? ICON : null;
@@ -117,7 +130,102 @@ public class LockableResourcesRootAction implements RootAction {
     @Exported
     @Restricted(NoExternalUse.class) // used by jelly
     public List<LockableResource> getResources() {
-        return LockableResourcesManager.get().getReadOnlyResources();
+        return LockableResourcesManager.get().getResourcesSnapshot();
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Large resource pools are not rendered into the page. The resources table loads them page by page
+     * from {@link #doTableData}.
+     */
+    @Restricted(NoExternalUse.class) // used by jelly
+    public boolean isServerSideTable() {
+        return LockableResourcesManager.get().getResourcesSnapshot().size() > SERVER_SIDE_TABLE_THRESHOLD;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * One page of the resources table in the DataTables server side processing format. Supports
+     * paging, sorting, search and the additional {@code label} filter.
+     */
+    @Restricted(NoExternalUse.class) // used by java-script
+    public void doTableData(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(VIEW);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache, no-store");
+        rsp.getWriter().write(ResourcesTable.fromRequest(req).render(req.getLocale()).toString());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Streaming export of the resources and the queue as NDJSON, see {@link ResourcesExport}. Unlike
+     * {@code api/json} the response is not buffered and supports {@code since=<revision>} deltas.
+     */
+    public void doExport(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(VIEW);
+
+        rsp.setContentType("application/x-ndjson;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache, no-store");
+        ResourcesExport.fromRequest(req).write(rsp.getWriter());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Long-poll of the resource and queue changes, see {@link ChangeFeed}. Returns the changes done
+     * after revision {@code since}, or waits up to {@code timeout} seconds (default 30) for them.
+     * Without {@code since} it waits for the next changes.
+     */
+    public void doChanges(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(VIEW);
+
+        final ChangeFeed feed = LockableResourcesManager.get().getChangeFeed();
+        long since;
+        int timeout;
+        try {
+            final String sinceParam = req.getParameter("since");
+            since = sinceParam == null ? feed.getRevision() : Long.parseLong(sinceParam);
+            final String timeoutParam = req.getParameter("timeout");
+            timeout = timeoutParam == null ? 30 : Integer.parseInt(timeoutParam);
+        } catch (NumberFormatException e) {
+            rsp.sendError(400, e.getMessage());
+            return;
+        }
+        // do not block the request threads too long
+        timeout = Math.max(0, Math.min(timeout, MAX_CHANGES_TIMEOUT));
+
+        final JSONObject changes;
+        try {
+            changes = feed.since(since, TimeUnit.SECONDS.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rsp.sendError(503);
+            return;
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache, no-store");
+        rsp.getWriter().write(changes.toString());
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Usage statistics of the resources and labels as JSON, see {@link ResourceStatistics}: busy and
+     * idle time, locks, wait time percentiles and the top blockers over the last hours.
+     */
+    public void doStatistics(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(VIEW);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache, no-store");
+        rsp.getWriter().write(this.getUsageStatistics().toString());
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    @Restricted(NoExternalUse.class) // used by jelly
+    public JSONObject getUsageStatistics() {
+        final LockableResourcesManager lrm = LockableResourcesManager.get();
+        return lrm.getStatistics().toJson(lrm.getResourcesSnapshot());
     }
 
     // ---------------------------------------------------------------------------
@@ -130,28 +238,15 @@ public class LockableResourcesRootAction implements RootAction {
     public LinkedHashMap<String, LockableResourcesLabel> getLabelsList() {
         LinkedHashMap<String, LockableResourcesLabel> map = new LinkedHashMap<>();
 
-        for (LockableResource r : LockableResourcesManager.get().getReadOnlyResources()) {
-            if (r == null || r.getName().isEmpty()) {
+        // counted by the manager on each change, no need to check all resources here
+        for (Map.Entry<String, int[]> entry : LockableResourcesManager.get().getLabelCounters().entrySet()) {
+            if (entry.getKey() == null || entry.getKey().isEmpty()) {
                 continue; // defensive, shall never happens, but ...
             }
-            List<String> assignedLabels = r.getLabelsAsList();
-            if (assignedLabels.isEmpty()) {
-                continue;
-            }
-
-            for (String labelString : assignedLabels) {
-                if (labelString == null || labelString.isEmpty()) {
-                    continue; // defensive, shall never happens, but ...
-                }
-                LockableResourcesLabel label = map.get(labelString);
-                if (label == null) {
-                    label = new LockableResourcesLabel(labelString);
-                }
-
-                label.update(r);
-
-                map.put(labelString, label);
-            }
+            LockableResourcesLabel label = new LockableResourcesLabel(entry.getKey());
+            label.assigned = entry.getValue()[0];
+            label.free = entry.getValue()[1];
+            map.put(entry.getKey(), label);
         }
 
         return map;
@@ -280,6 +375,11 @@ public class LockableResourcesRootAction implements RootAction {
     @Deprecated // slow down plugin execution due concurrent modification checks
     public int getAssignedResourceAmount(String labelString) {
         this.informPerformanceIssue();
+        LockableResourcesLabel label = this.getLabelsList().get(labelString);
+        if (label != null) {
+            return label.getAssigned();
+        }
+        // might be a label expression
         return LockableResourcesManager.get().getResourcesWithLabel(labelString).size();
     }
 
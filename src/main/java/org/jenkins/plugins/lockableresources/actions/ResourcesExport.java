@@ -0,0 +1,210 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.actions;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang3.StringUtils;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourceProperty;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+
+// -----------------------------------------------------------------------------
+/**
+ * Streaming export of the resources and the queue as NDJSON (one JSON object per line).
+ *
+ * <p>The first line contains the revision of the export. The resources follow one by one as they
+ * are written from {@link LockableResourcesManager#getResourcesSnapshot()}, so the memory use does
+ * not depend on the amount of resources. With {@code since=<revision>} only the resources changed
+ * since this revision are written, unless the resources has been added or removed meanwhile ({@code
+ * "full": true} in the first line). The queue is always written completely.
+ *
+ * <p>The export does not resolve builds nor users, the locking build is written as its id.
+ */
+@Restricted(NoExternalUse.class)
+public final class ResourcesExport {
+
+    /** Fields written per default, {@code name} and {@code revision} are written always. */
+    static final List<String> RESOURCE_FIELDS = Arrays.asList(
+            "description",
+            "labels",
+            "note",
+            "ephemeral",
+            "properties",
+            "status",
+            "reservedBy",
+            "reservedTimestamp",
+            "stolen",
+            "build",
+            "queueItemId",
+            "queueItemProject");
+
+    private Set<String> fields = new LinkedHashSet<>(RESOURCE_FIELDS);
+    private long since = 0;
+    private boolean queue = true;
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Export with request parameters {@code fields} (comma separated), {@code since} (revision of a
+     * previous export) and {@code queue} ({@code false} to skip the queue).
+     */
+    @NonNull
+    public static ResourcesExport fromRequest(@NonNull final StaplerRequest req) {
+        ResourcesExport export = new ResourcesExport();
+        final String fields = StringUtils.trimToNull(req.getParameter("fields"));
+        if (fields != null) {
+            export.fields = new LinkedHashSet<>();
+            for (String field : fields.split(",")) {
+                field = field.trim();
+                if (RESOURCE_FIELDS.contains(field)) {
+                    export.fields.add(field);
+                }
+            }
+        }
+        try {
+            final String since = StringUtils.trimToNull(req.getParameter("since"));
+            export.since = since == null ? 0 : Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            // the same as without it, everything is written
+            export.since = 0;
+        }
+        export.queue = !"false".equals(req.getParameter("queue"));
+        return export;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Writes the export into *out*, line by line. */
+    public void write(@NonNull final Writer out) throws IOException {
+        final LockableResourcesManager lrm = LockableResourcesManager.get();
+        List<LockableResource> resources;
+        long removed;
+        do {
+            // the removal version belonging to the snapshot, retried when a resource has been removed meanwhile
+            removed = lrm.getResourcesSnapshotRemovedVersion();
+            resources = lrm.getResourcesSnapshot();
+        } while (removed != lrm.getResourcesSnapshotRemovedVersion());
+
+        long revision = removed;
+        long oldest = Long.MAX_VALUE;
+        for (LockableResource resource : resources) {
+            revision = Math.max(revision, resource.getSnapshotVersion());
+            oldest = Math.min(oldest, resource.getSnapshotVersion());
+        }
+        // resources might have been removed after 'since', or 'since' is from a previous Jenkins run
+        final boolean full = this.since <= 0 || this.since > revision || this.since < oldest || this.since < removed;
+
+        final JSONObject header = new JSONObject();
+        header.put("type", "revision");
+        header.put("revision", revision);
+        header.put("full", full);
+        writeLine(out, header);
+        out.flush();
+
+        for (LockableResource resource : resources) {
+            if (full || resource.getSnapshotVersion() > this.since) {
+                writeLine(out, this.toJson(resource));
+            }
+        }
+
+        if (this.queue) {
+            for (QueuedContextStruct context : lrm.getCurrentQueuedContext()) {
+                writeLine(out, toJson(context));
+            }
+        }
+        out.flush();
+    }
+
+    // ---------------------------------------------------------------------------
+    private static void writeLine(final Writer out, final JSONObject json) throws IOException {
+        out.write(json.toString());
+        out.write('\n');
+    }
+
+    // ---------------------------------------------------------------------------
+    private JSONObject toJson(final LockableResource resource) {
+        final JSONObject json = new JSONObject();
+        json.put("type", "resource");
+        json.put("name", resource.getName());
+        json.put("revision", resource.getSnapshotVersion());
+        for (String field : this.fields) {
+            json.put(field, value(resource, field));
+        }
+        return json;
+    }
+
+    // ---------------------------------------------------------------------------
+    @CheckForNull
+    private static Object value(final LockableResource resource, final String field) {
+        switch (field) {
+            case "description":
+                return resource.getDescription();
+            case "labels":
+                return JSONArray.fromObject(resource.getLabelsAsList());
+            case "note":
+                return resource.getNote();
+            case "ephemeral":
+                return resource.isEphemeral();
+            case "properties":
+                final JSONObject properties = new JSONObject();
+                for (LockableResourceProperty property : resource.getProperties()) {
+                    properties.put(property.getName(), property.getValue());
+                }
+                return properties;
+            case "status":
+                return resource.getState();
+            case "reservedBy":
+                return resource.getReservedBy();
+            case "reservedTimestamp":
+                final Date timestamp = resource.getReservedTimestamp();
+                return timestamp == null ? null : timestamp.getTime();
+            case "stolen":
+                return resource.isStolen();
+            case "build":
+                return resource.getBuildExternalizableId();
+            case "queueItemId":
+                return resource.getQueueItemId();
+            case "queueItemProject":
+                return resource.getQueueItemProject();
+            default:
+                return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static JSONObject toJson(final QueuedContextStruct context) {
+        final JSONObject json = new JSONObject();
+        json.put("type", "queue");
+        json.put("id", context.getId());
+        json.put("priority", context.getPriority());
+        json.put("resources", context.getResourceDescription());
+        long queuedAt = 0;
+        for (LockableResourcesStruct struct : context.getResources()) {
+            queuedAt = queuedAt == 0 ? struct.queuedAt : Math.min(queuedAt, struct.queuedAt);
+        }
+        json.put("queuedAt", queuedAt);
+        final Run<?, ?> build = context.getBuild();
+        json.put("build", build == null ? null : build.getExternalizableId());
+        return json;
+    }
+}
@@ -0,0 +1,315 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.actions;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Run;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang3.StringUtils;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourceProperty;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerRequest;
+
+// -----------------------------------------------------------------------------
+/**
+ * Server side processing of the resources table (DataTables protocol).
+ *
+ * <p>The rows are taken from {@link LockableResourcesManager#getResourcesSnapshot()}, filtered,
+ * sorted and only the requested page is rendered. The label filter uses the label index of the
+ * manager.
+ */
+@Restricted(NoExternalUse.class)
+public final class ResourcesTable {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourcesTable.class.getName());
+
+    /** Maximal amount of rows returned at once. */
+    static final int MAX_PAGE_LENGTH = 1000;
+
+    /** Status of the resource, in the order used for sorting. */
+    enum Status {
+        FREE,
+        QUEUED,
+        LOCKED,
+        RESERVED
+    }
+
+    private int draw;
+    private int start;
+    private int length = 10;
+    private String search;
+    private String label;
+    private int orderColumn;
+    private boolean descending;
+
+    // ---------------------------------------------------------------------------
+    /** Request with the DataTables parameters. */
+    @NonNull
+    public static ResourcesTable fromRequest(@NonNull final StaplerRequest req) {
+        ResourcesTable table = new ResourcesTable();
+        table.draw = parseInt(req.getParameter("draw"), 0);
+        table.start = Math.max(0, parseInt(req.getParameter("start"), 0));
+        final int length = parseInt(req.getParameter("length"), 10);
+        table.length = length <= 0 ? MAX_PAGE_LENGTH : Math.min(length, MAX_PAGE_LENGTH);
+        table.search = StringUtils.trimToNull(req.getParameter("search[value]"));
+        table.label = StringUtils.trimToNull(req.getParameter("label"));
+        table.orderColumn = parseInt(req.getParameter("order[0][column]"), 0);
+        table.descending = "desc".equals(req.getParameter("order[0][dir]"));
+        return table;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the requested page in the DataTables response format. */
+    @NonNull
+    public JSONObject render(@NonNull final Locale locale) {
+        final LockableResourcesManager lrm = LockableResourcesManager.get();
+        final List<LockableResource> all = lrm.getResourcesSnapshot();
+
+        Set<String> withLabel = null;
+        if (this.label != null) {
+            withLabel = new HashSet<>();
+            for (LockableResource resource : lrm.getResourcesWithLabel(this.label)) {
+                withLabel.add(resource.getName());
+            }
+        }
+
+        final String needle = this.search == null ? null : this.search.toLowerCase(Locale.ENGLISH);
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            final LockableResource resource = all.get(i);
+            if (withLabel != null && !withLabel.contains(resource.getName())) {
+                continue;
+            }
+            if (needle != null && !matches(resource, needle)) {
+                continue;
+            }
+            rows.add(new Row(i + 1, resource));
+        }
+
+        final Comparator<Row> comparator = comparator(this.orderColumn);
+        if (comparator != null) {
+            rows.sort(this.descending ? comparator.reversed() : comparator);
+        } else if (this.descending) {
+            rows.sort(Comparator.comparingInt((Row row) -> row.index).reversed());
+        }
+
+        final Actions actions = new Actions();
+        final DateFormat format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT, locale);
+        final JSONArray data = new JSONArray();
+        for (int i = this.start; i < rows.size() && i < this.start + this.length; i++) {
+            data.add(toJson(rows.get(i), actions, format));
+        }
+
+        final JSONObject json = new JSONObject();
+        json.put("draw", this.draw);
+        json.put("recordsTotal", all.size());
+        json.put("recordsFiltered", rows.size());
+        json.put("data", data);
+        return json;
+    }
+
+    // ---------------------------------------------------------------------------
+    @NonNull
+    static Status statusOf(@NonNull final LockableResource resource) {
+        if (resource.getReservedBy() != null) {
+            return Status.RESERVED;
+        } else if (resource.isLocked()) {
+            return Status.LOCKED;
+        } else if (resource.isQueued()) {
+            return Status.QUEUED;
+        }
+        return Status.FREE;
+    }
+
+    // ---------------------------------------------------------------------------
+    private static boolean matches(final LockableResource resource, final String needle) {
+        return contains(resource.getName(), needle)
+                || contains(resource.getDescription(), needle)
+                || contains(resource.getNote(), needle)
+                || contains(resource.getLabels(), needle)
+                || contains(resource.getReservedBy(), needle)
+                || contains(resource.getQueueItemProject(), needle);
+    }
+
+    private static boolean contains(@CheckForNull final String text, final String needle) {
+        return text != null && text.toLowerCase(Locale.ENGLISH).contains(needle);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns the sort order of given table column, or null to keep the resources order. */
+    @CheckForNull
+    private static Comparator<Row> comparator(final int column) {
+        switch (column) {
+            case 1:
+                return Comparator.comparing((Row row) -> row.resource.getName());
+            case 2:
+                return Comparator.comparing((Row row) -> row.status).thenComparingInt(row -> row.index);
+            case 3:
+                return Comparator.comparingLong((Row row) -> row.timestamp).thenComparingInt(row -> row.index);
+            case 4:
+                return Comparator.comparing((Row row) -> row.resource.getLabels())
+                        .thenComparingInt(row -> row.index);
+            default:
+                return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static JSONObject toJson(final Row row, final Actions actions, final DateFormat format) {
+        final LockableResource resource = row.resource;
+        final JSONObject json = new JSONObject();
+        json.put("index", row.index);
+        json.put("name", resource.getName());
+        json.put("ephemeral", resource.isEphemeral());
+        json.put("description", Util.fixNull(resource.getDescription()));
+        json.put("note", renderNote(resource.getNote()));
+        json.put("labels", resource.getLabelsAsList());
+
+        final JSONArray properties = new JSONArray();
+        for (LockableResourceProperty property : resource.getProperties()) {
+            final JSONObject p = new JSONObject();
+            p.put("name", property.getName());
+            p.put("value", property.getValue());
+            properties.add(p);
+        }
+        json.put("properties", properties);
+
+        json.put("status", row.status.name());
+        json.put("reservedBy", Util.fixNull(resource.getReservedBy()));
+        final Run<?, ?> build = row.status == Status.LOCKED ? resource.getBuild() : null;
+        json.put("buildUrl", build == null ? "" : build.getUrl());
+        json.put("buildName", build == null ? "" : build.getFullDisplayName());
+        json.put("queueItemProject", Util.fixNull(resource.getQueueItemProject()));
+        json.put("queueItemId", resource.getQueueItemId());
+
+        final Date timestamp = resource.getReservedTimestamp();
+        if (timestamp != null) {
+            json.put("timestamp", timestamp.getTime());
+            json.put("timestampText", format.format(timestamp));
+            json.put("ago", Util.getTimeSpanString(System.currentTimeMillis() - timestamp.getTime()));
+        }
+
+        json.put("actions", actions.of(resource, row.status));
+        return json;
+    }
+
+    // ---------------------------------------------------------------------------
+    private static String renderNote(@CheckForNull final String note) {
+        if (note == null || note.isEmpty()) {
+            return "";
+        }
+        try {
+            return Jenkins.get().getMarkupFormatter().translate(note);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Can not render the resource note", e);
+            return Util.escape(note);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static int parseInt(@CheckForNull final String value, final int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** One filtered resource, with the values used for sorting. */
+    private static final class Row {
+        private final int index;
+        private final LockableResource resource;
+        private final Status status;
+        private final long timestamp;
+
+        Row(final int index, final LockableResource resource) {
+            this.index = index;
+            this.resource = resource;
+            this.status = statusOf(resource);
+            final Date reserved = resource.getReservedTimestamp();
+            this.timestamp = reserved == null ? 0 : reserved.getTime();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Buttons of the action column, the same permission checks like the table.jelly. */
+    private static final class Actions {
+        private final boolean unlock;
+        private final boolean reserve;
+        private final boolean steal;
+        private final boolean admin;
+
+        Actions() {
+            final Jenkins jenkins = Jenkins.get();
+            this.unlock = jenkins.hasPermission(LockableResourcesRootAction.UNLOCK);
+            this.reserve = jenkins.hasPermission(LockableResourcesRootAction.RESERVE);
+            this.steal = jenkins.hasPermission(LockableResourcesRootAction.STEAL);
+            this.admin = jenkins.hasPermission(Jenkins.ADMINISTER);
+        }
+
+        JSONArray of(final LockableResource resource, final Status status) {
+            final JSONArray actions = new JSONArray();
+            switch (status) {
+                case LOCKED:
+                    if (this.unlock) {
+                        actions.add("unlock");
+                    }
+                    if (this.steal) {
+                        actions.add("steal");
+                    }
+                    break;
+                case RESERVED:
+                    final boolean own = resource.isReservedByCurrentUser();
+                    if (this.reserve && (own || this.admin)) {
+                        actions.add("unreserve");
+                    }
+                    if (this.steal && !own) {
+                        actions.add("reassign");
+                    }
+                    break;
+                case QUEUED:
+                    if (this.unlock) {
+                        actions.add("reset");
+                    }
+                    break;
+                default:
+                    if (this.reserve) {
+                        actions.add("reserve");
+                    }
+                    break;
+            }
+            if (this.reserve) {
+                actions.add("editNote");
+            }
+            return actions;
+        }
+    }
+}
@@ -5,7 +5,13 @@ import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.model.Node;
 import hudson.slaves.ComputerListener;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
@@ -46,9 +52,17 @@ public class NodesMirror extends ComputerListener {
 
         LOGGER.info("lockable-resources-plugin: start nodes mirroring");
         lrm = LockableResourcesManager.get();
+        // resolve the node labels first, it does not need the global lock
+        Map<Node, String> nodeLabels = new LinkedHashMap<>();
+        for (Node n : Jenkins.get().getNodes()) {
+            if (n != null) {
+                nodeLabels.put(
+                        n, n.getAssignedLabels().stream().map(Object::toString).collect(Collectors.joining(" ")));
+            }
+        }
         synchronized (lrm.syncResources) {
-            for (Node n : Jenkins.get().getNodes()) {
-                mirrorNode(n);
+            for (Map.Entry<Node, String> entry : nodeLabels.entrySet()) {
+                mirrorNode(entry.getKey(), entry.getValue());
             }
             // please do not remove it, From time to time is necessary for developer debugs
             // thx
@@ -61,16 +75,21 @@ public class NodesMirror extends ComputerListener {
 
     // ---------------------------------------------------------------------------
     private static void deleteNotExistingNodes() {
-        Iterator<LockableResource> resourceIterator = lrm.getResources().iterator();
-        while (resourceIterator.hasNext()) {
-            LockableResource resource = resourceIterator.next();
+        List<LockableResource> candidates = new ArrayList<>();
+        for (LockableResource resource : lrm.getResources()) {
             if (!resource.isNodeResource() || (Jenkins.get().getNode(resource.getName()) != null)) {
                 continue;
             }
-            if (resource.isFree()) {
+            candidates.add(resource);
+        }
+        // remove it via LRM, so the indexes are updated as well. The free check is done there with the
+        // resource locks, a build might lock a node resource without the global lock.
+        final Set<LockableResource> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(lrm.removeFreeResources(candidates));
+        for (LockableResource resource : candidates) {
+            if (removed.contains(resource)) {
                 // we can remove this resource. Is newer used currently
                 LOGGER.config("lockable-resources-plugin: remove node resource '" + resource.getName() + "'.");
-                resourceIterator.remove();
             } else {
                 LOGGER.warning("lockable-resources-plugin: can not remove node-resource '"
                         + resource.getName()
@@ -80,11 +99,7 @@ public class NodesMirror extends ComputerListener {
     }
 
     // ---------------------------------------------------------------------------
-    private static void mirrorNode(Node node) {
-        if (node == null) {
-            return;
-        }
-
+    private static void mirrorNode(final Node node, final String labels) {
         LockableResource nodeResource = lrm.fromName(node.getNodeName());
         boolean exist = nodeResource != null;
         if (!exist) {
@@ -93,8 +108,7 @@ public class NodesMirror extends ComputerListener {
         } else {
             LOGGER.fine("lockable-resources-plugin: Node-resource '" + nodeResource.getName() + "' will be updated.");
         }
-        nodeResource.setLabels(
-                node.getAssignedLabels().stream().map(Object::toString).collect(Collectors.joining(" ")));
+        nodeResource.setLabels(labels);
         nodeResource.setNodeResource(true);
         nodeResource.setEphemeral(false);
         nodeResource.setDescription(node.getNodeDescription());
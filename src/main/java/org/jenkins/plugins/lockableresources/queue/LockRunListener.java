@@ -40,54 +40,57 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
 
         if (build instanceof AbstractBuild) {
             LockableResourcesManager lrm = LockableResourcesManager.get();
-            synchronized (lrm.syncResources) {
-                Job<?, ?> proj = Utils.getProject(build);
-                List<LockableResource> required = new ArrayList<>();
-
-                LockableResourcesStruct resources = Utils.requiredResources(proj);
+            // the job configuration is resolved without holding the global lock
+            Job<?, ?> proj = Utils.getProject(build);
+            LockableResourcesStruct resources = Utils.requiredResources(proj);
+            if (resources == null) {
+                return;
+            }
 
-                if (resources != null) {
-                    if (resources.requiredNumber != null
-                            || !resources.label.isEmpty()
-                            || resources.getResourceMatchScriptText() != null) {
-                        required.addAll(lrm.getResourcesFromProject(proj.getFullName()));
-                    } else {
-                        required.addAll(resources.required);
-                    }
+            List<LockableResource> required = new ArrayList<>();
+            final boolean locked;
+            synchronized (lrm.syncResources) {
+                if (resources.requiredNumber != null
+                        || !resources.label.isEmpty()
+                        || resources.getResourceMatchScriptText() != null) {
+                    required.addAll(lrm.getResourcesFromProject(proj.getFullName()));
+                } else {
+                    required.addAll(resources.required);
+                }
 
-                    if (lrm.lock(required, build)) {
-                        // build.addAction(LockedResourcesBuildAction.fromResources(required));
-                        listener.getLogger().printf("%s acquired lock on %s%n", LOG_PREFIX, required);
-                        LOGGER.info(build.getFullDisplayName() + " acquired lock on " + required);
-                        if (resources.requiredVar != null) {
-                            List<StringParameterValue> envsToSet = new ArrayList<>();
+                locked = lrm.lock(required, build);
+            }
 
-                            // add the comma separated list of names acquired
-                            envsToSet.add(new StringParameterValue(
-                                    resources.requiredVar,
-                                    required.stream()
-                                            .map(LockableResource::getName)
-                                            .collect(Collectors.joining(","))));
+            // the resources belong to this build now, the rest does not need the global lock
+            if (locked) {
+                // build.addAction(LockedResourcesBuildAction.fromResources(required));
+                listener.getLogger().printf("%s acquired lock on %s%n", LOG_PREFIX, required);
+                LOGGER.info(build.getFullDisplayName() + " acquired lock on " + required);
+                if (resources.requiredVar != null) {
+                    List<StringParameterValue> envsToSet = new ArrayList<>();
 
-                            // also add a numbered variable for each acquired lock along with properties of the lock
-                            int index = 0;
-                            for (LockableResource lr : required) {
-                                String lockEnvName = resources.requiredVar + index;
-                                envsToSet.add(new StringParameterValue(lockEnvName, lr.getName()));
-                                for (LockableResourceProperty lockProperty : lr.getProperties()) {
-                                    String propEnvName = lockEnvName + "_" + lockProperty.getName();
-                                    envsToSet.add(new StringParameterValue(propEnvName, lockProperty.getValue()));
-                                }
-                                ++index;
-                            }
+                    // add the comma separated list of names acquired
+                    envsToSet.add(new StringParameterValue(
+                            resources.requiredVar,
+                            required.stream().map(LockableResource::getName).collect(Collectors.joining(","))));
 
-                            build.addAction(new ResourceVariableNameAction(envsToSet));
+                    // also add a numbered variable for each acquired lock along with properties of the lock
+                    int index = 0;
+                    for (LockableResource lr : required) {
+                        String lockEnvName = resources.requiredVar + index;
+                        envsToSet.add(new StringParameterValue(lockEnvName, lr.getName()));
+                        for (LockableResourceProperty lockProperty : lr.getProperties()) {
+                            String propEnvName = lockEnvName + "_" + lockProperty.getName();
+                            envsToSet.add(new StringParameterValue(propEnvName, lockProperty.getValue()));
                         }
-                    } else {
-                        listener.getLogger().printf("%s failed to lock %s%n", LOG_PREFIX, required);
-                        LOGGER.warning(build.getFullDisplayName() + " failed to lock " + required);
+                        ++index;
                     }
+
+                    build.addAction(new ResourceVariableNameAction(envsToSet));
                 }
+            } else {
+                listener.getLogger().printf("%s failed to lock %s%n", LOG_PREFIX, required);
+                LOGGER.warning(build.getFullDisplayName() + " failed to lock " + required);
             }
         }
     }
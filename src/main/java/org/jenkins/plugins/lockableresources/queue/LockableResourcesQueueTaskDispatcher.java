@@ -65,7 +65,9 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
             resourceNumber = 0;
         }
 
-        LOGGER.finest(project.getName() + " trying to get resources with these details: " + resources);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest(project.getName() + " trying to get resources with these details: " + resources);
+        }
 
         if (resourceNumber > 0 || !resources.label.isEmpty() || resources.getResourceMatchScriptText() != null) {
             Map<String, Object> params = new HashMap<>();
@@ -120,19 +122,27 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
             }
 
             if (selected != null) {
-                LOGGER.finest(project.getName() + " reserved resources " + selected);
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest(project.getName() + " reserved resources " + selected);
+                }
                 return null;
             } else {
-                LOGGER.finest(project.getName() + " waiting for resources");
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest(project.getName() + " waiting for resources");
+                }
                 return new BecauseResourcesLocked(resources);
             }
 
         } else {
             if (LockableResourcesManager.get().queue(resources.required, item.getId(), project.getFullDisplayName())) {
-                LOGGER.finest(project.getName() + " reserved resources " + resources.required);
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest(project.getName() + " reserved resources " + resources.required);
+                }
                 return null;
             } else {
-                LOGGER.finest(project.getName() + " waiting for resources " + resources.required);
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest(project.getName() + " waiting for resources " + resources.required);
+                }
                 return new BecauseResourcesLocked(resources);
             }
         }
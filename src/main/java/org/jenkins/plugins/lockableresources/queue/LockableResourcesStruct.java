@@ -73,6 +73,17 @@ public class LockableResourcesStruct implements Serializable {
         if (requiredNumber != null && requiredNumber.equals("0")) requiredNumber = null;
     }
 
+    /** Copy of the parsed requirements, with its own {@link #queuedAt} time. See {@link Utils#requiredResources}. */
+    LockableResourcesStruct(final LockableResourcesStruct other) {
+        this.queuedAt = new Date().getTime();
+        this.required = new ArrayList<>(other.required);
+        this.label = other.label;
+        this.requiredVar = other.requiredVar;
+        this.requiredNumber = other.requiredNumber;
+        this.serializableResourceMatchScript = other.serializableResourceMatchScript;
+        this.resourceMatchScript = other.resourceMatchScript;
+    }
+
     /**
      * Light-weight constructor for declaring a resource only.
      *
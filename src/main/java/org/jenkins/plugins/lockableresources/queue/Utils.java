@@ -8,18 +8,35 @@
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 package org.jenkins.plugins.lockableresources.queue;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
+import hudson.Extension;
 import hudson.matrix.MatrixConfiguration;
+import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.RequiredResourcesProperty;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 public final class Utils {
     private Utils() {}
 
+    /**
+     * Parsed requirements by the full name of the job, see {@link #requiredResources(Job)}. The name
+     * does not pin the job in memory, the entries are removed by {@link JobListener}.
+     */
+    private static final Cache<String, CachedRequirement> REQUIRED_RESOURCES = Caffeine.newBuilder().build();
+
     @CheckForNull
     public static Job<?, ?> getProject(@NonNull Queue.Item item) {
         if (item.task instanceof Job) return (Job<?, ?>) item.task;
@@ -31,18 +48,106 @@ public final class Utils {
         return build.getParent();
     }
 
+    /**
+     * Returns the resources required by the *project* (freestyle job or configuration of a matrix
+     * job). The parsed result is cached per job, each call gets its own copy of it. It is parsed again
+     * when the job configuration is saved (new {@link RequiredResourcesProperty} instance) or when a
+     * required resource has been removed meanwhile (like ephemeral resources).
+     */
     @CheckForNull
     public static LockableResourcesStruct requiredResources(@NonNull Job<?, ?> project) {
-        EnvVars env = new EnvVars();
+        final Job<?, ?> job = project instanceof MatrixConfiguration ? (Job<?, ?>) project.getParent() : project;
+        // contains the combination for the configurations of a matrix job
+        final String key = project.getFullName();
+
+        RequiredResourcesProperty property = job.getProperty(RequiredResourcesProperty.class);
+        if (property == null) {
+            REQUIRED_RESOURCES.invalidate(key);
+            return null;
+        }
 
+        CachedRequirement cached = REQUIRED_RESOURCES.getIfPresent(key);
+        if (cached != null && cached.property.get() == property && cached.isValid()) {
+            return new LockableResourcesStruct(cached.resources);
+        }
+
+        EnvVars env = new EnvVars();
         if (project instanceof MatrixConfiguration) {
             env.putAll(((MatrixConfiguration) project).getCombination());
-            project = (Job<?, ?>) project.getParent();
         }
+        final long version = LockableResourcesManager.get().getStructureVersion();
+        LockableResourcesStruct resources = new LockableResourcesStruct(property, env);
+        REQUIRED_RESOURCES.put(key, new CachedRequirement(property, resources, version));
+        return new LockableResourcesStruct(resources);
+    }
 
-        RequiredResourcesProperty property = project.getProperty(RequiredResourcesProperty.class);
-        if (property != null) return new LockableResourcesStruct(property, env);
+    /** For testing purpose. */
+    @Restricted(NoExternalUse.class)
+    public static boolean isRequirementCached(@NonNull Job<?, ?> project) {
+        return REQUIRED_RESOURCES.getIfPresent(project.getFullName()) != null;
+    }
 
-        return null;
+    /** Removes the cached requirements of the job and its children (configurations of a matrix job). */
+    private static void invalidate(@NonNull final String fullName) {
+        final String children = fullName + "/";
+        REQUIRED_RESOURCES.asMap().keySet().removeIf(key -> key.equals(fullName) || key.startsWith(children));
+    }
+
+    private static final class CachedRequirement {
+        /** Only to compare with the current one, it must not keep the job (its owner) in memory. */
+        private final WeakReference<RequiredResourcesProperty> property;
+
+        private final LockableResourcesStruct resources;
+
+        /** {@link LockableResourcesManager#getStructureVersion()} when {@link #resources} were checked. */
+        private volatile long version;
+
+        CachedRequirement(RequiredResourcesProperty property, LockableResourcesStruct resources, long version) {
+            this.property = new WeakReference<>(property);
+            this.resources = resources;
+            this.version = version;
+        }
+
+        /** Checks, that all the required resources are still registered. */
+        boolean isValid() {
+            LockableResourcesManager lrm = LockableResourcesManager.get();
+            final long current = lrm.getStructureVersion();
+            if (current == this.version) {
+                return true;
+            }
+            // some resource has been added or removed, look them up again at once
+            final List<String> names = LockableResourcesManager.getResourcesNames(resources.required);
+            final List<LockableResource> found = lrm.fromNames(names);
+            if (found.size() != resources.required.size()) {
+                return false;
+            }
+            for (int i = 0; i < found.size(); i++) {
+                if (found.get(i) != resources.required.get(i)) {
+                    return false;
+                }
+            }
+            this.version = current;
+            return true;
+        }
+    }
+
+    /** Drops the cached requirements, when the job is changed, renamed or deleted. */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onUpdated(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName);
+        }
     }
 }
@@ -15,4 +15,53 @@ public class Constants {
             "org.jenkins.plugins.lockableresources.PRINT_BLOCKED_RESOURCE";
     public static final String SYSTEM_PROPERTY_PRINT_QUEUE_INFO =
             "org.jenkins.plugins.lockableresources.PRINT_QUEUE_INFO";
+    /// Enable append-only change journal. The state changes (lock, unlock, reserve, queue ...) are
+    /// appended into the journal instead of writing the whole lockable-resources state each time.
+    /// The journal is compacted into the regular XML file periodically and on Jenkins start.
+    public static final String SYSTEM_PROPERTY_ENABLE_SAVE_JOURNAL =
+            "org.jenkins.plugins.lockableresources.ENABLE_SAVE_JOURNAL";
+    /// Amount of journal entries, after which the journal is compacted into the XML file. Per default 1000.
+    public static final String SYSTEM_PROPERTY_JOURNAL_COMPACTION_THRESHOLD =
+            "org.jenkins.plugins.lockableresources.JOURNAL_COMPACTION_THRESHOLD";
+    /// Delay in milliseconds to coalesce the state changes into one background save (for example 500).
+    /// Per default 0, each change is saved immediately.
+    public static final String SYSTEM_PROPERTY_SAVE_INTERVAL = "org.jenkins.plugins.lockableresources.SAVE_INTERVAL";
+    /// Amount of threads used to evaluate resource match (groovy) scripts against the resources.
+    /// Per default 1, the scripts are evaluated serially by the calling thread.
+    public static final String SYSTEM_PROPERTY_SCRIPT_PARALLELISM =
+            "org.jenkins.plugins.lockableresources.SCRIPT_PARALLELISM";
+    /// Maximal amount of (script, parameters) combinations, whose resource match results are kept in cache.
+    /// Per default 100, 0 disables the cache.
+    public static final String SYSTEM_PROPERTY_SCRIPT_RESULT_CACHE_SIZE =
+            "org.jenkins.plugins.lockableresources.SCRIPT_RESULT_CACHE_SIZE";
+    /// Maximal amount of candidates (resources matching the label or script) cached for the queue items in total.
+    /// Per default 100000.
+    public static final String SYSTEM_PROPERTY_CANDIDATES_CACHE_SIZE =
+            "org.jenkins.plugins.lockableresources.CANDIDATES_CACHE_SIZE";
+    /// Seconds, after which resources queued for a (freestyle) queue item are freed again, when the item did not start.
+    /// Per default 60.
+    public static final String SYSTEM_PROPERTY_QUEUE_TIMEOUT = "org.jenkins.plugins.lockableresources.QUEUE_TIMEOUT";
+    /// Maximal amount of parsed label expressions kept in cache. Per default 1000.
+    public static final String SYSTEM_PROPERTY_LABEL_EXPRESSION_CACHE_SIZE =
+            "org.jenkins.plugins.lockableresources.LABEL_EXPRESSION_CACHE_SIZE";
+    /// Amount of resources, above which the resources table is loaded page by page from the server
+    /// instead of rendering all of them into the page. Per default 1000, 0 loads the table always page by page.
+    public static final String SYSTEM_PROPERTY_SERVER_SIDE_TABLE_THRESHOLD =
+            "org.jenkins.plugins.lockableresources.SERVER_SIDE_TABLE_THRESHOLD";
+    /// Amount of recent resource and queue changes kept for the clients of the change feed
+    /// (`lockable-resources/changes`). Per default 1000.
+    public static final String SYSTEM_PROPERTY_CHANGE_FEED_SIZE =
+            "org.jenkins.plugins.lockableresources.CHANGE_FEED_SIZE";
+    /// Set to true to measure the lock wait time for each resource separately (metric
+    /// `lockable-resources.lock.wait.resource.<name>`). Per default false, only per label.
+    public static final String SYSTEM_PROPERTY_METRICS_PER_RESOURCE =
+            "org.jenkins.plugins.lockableresources.METRICS_PER_RESOURCE";
+    /// Set to true to register the metric `lockable-resources.sync.blocked`. It takes a thread dump every 10 seconds,
+    /// which pauses the whole controller for a moment. Per default false.
+    public static final String SYSTEM_PROPERTY_METRICS_SYNC_BLOCKED =
+            "org.jenkins.plugins.lockableresources.METRICS_SYNC_BLOCKED";
+    /// Hours covered by the resource and label usage statistics (`lockable-resources/statistics`).
+    /// Per default 24.
+    public static final String SYSTEM_PROPERTY_STATISTICS_WINDOW =
+            "org.jenkins.plugins.lockableresources.STATISTICS_WINDOW";
 }
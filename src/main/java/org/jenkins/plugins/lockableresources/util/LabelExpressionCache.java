@@ -0,0 +1,134 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+import java.util.Set;
+import jenkins.util.SystemProperties;
+
+// -----------------------------------------------------------------------------
+/**
+ * Bounded cache of parsed label expressions, shared across all resource checks.
+ *
+ * <p>The same handful of expressions (like {@code "label1 && label2"}) are checked against each
+ * resource on each queue round. Parsing them again and again is expensive, therefore the parsed
+ * {@link Label} is cached by the expression string. Use {@link #getHitCount()} and {@link
+ * #getMissCount()} to size the cache (system property {@link
+ * Constants#SYSTEM_PROPERTY_LABEL_EXPRESSION_CACHE_SIZE}).
+ */
+public final class LabelExpressionCache {
+
+    private static final int CACHE_SIZE =
+            SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_LABEL_EXPRESSION_CACHE_SIZE, 1000);
+
+    private static final Cache<String, Label> CACHE =
+            Caffeine.newBuilder().maximumSize(CACHE_SIZE).recordStats().build();
+
+    private static final Matcher MATCHER = new Matcher();
+
+    private LabelExpressionCache() {}
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns parsed label expression.
+     *
+     * @throws IllegalArgumentException when the expression can not be parsed. Failures are not cached.
+     */
+    @NonNull
+    public static Label parse(@NonNull final String expression) {
+        return CACHE.get(expression, Label::parseExpression);
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Checks if the *expression* matches given *atoms*. The same as {@link
+     * Label#matches(java.util.Collection)} but without any allocation.
+     */
+    public static boolean matches(@NonNull final Label expression, @NonNull final Set<LabelAtom> atoms) {
+        return expression.accept(MATCHER, atoms);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Amount of look-ups answered from the cache. */
+    public static long getHitCount() {
+        return CACHE.stats().hitCount();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Amount of look-ups, which needed to parse the expression. */
+    public static long getMissCount() {
+        return CACHE.stats().missCount();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Full cache statistics. */
+    @NonNull
+    public static CacheStats getStats() {
+        return CACHE.stats();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Current amount of cached expressions. */
+    public static long getSize() {
+        return CACHE.estimatedSize();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Remove all cached expressions. */
+    public static void invalidateAll() {
+        CACHE.invalidateAll();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Evaluates a label expression over a set of atoms. Stateless, so one instance is enough. */
+    private static final class Matcher extends LabelVisitor<Boolean, Set<LabelAtom>> {
+
+        @Override
+        public Boolean onAtom(LabelAtom a, Set<LabelAtom> atoms) {
+            return atoms.contains(a);
+        }
+
+        @Override
+        public Boolean onParen(LabelExpression.Paren p, Set<LabelAtom> atoms) {
+            return p.base.accept(this, atoms);
+        }
+
+        @Override
+        public Boolean onNot(LabelExpression.Not p, Set<LabelAtom> atoms) {
+            return !p.base.accept(this, atoms);
+        }
+
+        @Override
+        public Boolean onAnd(LabelExpression.And p, Set<LabelAtom> atoms) {
+            return p.lhs.accept(this, atoms) && p.rhs.accept(this, atoms);
+        }
+
+        @Override
+        public Boolean onOr(LabelExpression.Or p, Set<LabelAtom> atoms) {
+            return p.lhs.accept(this, atoms) || p.rhs.accept(this, atoms);
+        }
+
+        @Override
+        public Boolean onIff(LabelExpression.Iff p, Set<LabelAtom> atoms) {
+            return p.lhs.accept(this, atoms).booleanValue() == p.rhs.accept(this, atoms).booleanValue();
+        }
+
+        @Override
+        public Boolean onImplies(LabelExpression.Implies p, Set<LabelAtom> atoms) {
+            return !p.lhs.accept(this, atoms) || p.rhs.accept(this, atoms);
+        }
+    }
+}
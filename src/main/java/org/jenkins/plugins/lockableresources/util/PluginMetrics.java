@@ -0,0 +1,122 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+// -----------------------------------------------------------------------------
+/**
+ * Measuring points of the plugin. The measured values are passed to the {@link Recorder}, which is
+ * installed when the Jenkins metrics plugin is available (see {@code
+ * LockableResourcesMetricProvider}). Without it all the methods do nothing.
+ *
+ * <p>The methods are called in the hot paths, therefore they take primitives and existing objects
+ * only and do not allocate anything themselves.
+ */
+@Restricted(NoExternalUse.class)
+public final class PluginMetrics {
+
+    /** Receiver of the measured values. */
+    public interface Recorder {
+        /** Time in milliseconds, the lock step waited for its resources. */
+        void lockWait(long millis);
+
+        /** Time in milliseconds, the lock step waited for resources with given label. */
+        void labelWait(@NonNull String label, long millis);
+
+        /** Time in milliseconds, the lock step waited for given resource. */
+        void resourceWait(@NonNull String resource, long millis);
+
+        /** Time waited for {@code syncResources} and held it afterwards, in nanoseconds. */
+        void syncHeld(long waitNanos, long heldNanos);
+
+        /** Duration of one save in nanoseconds and amount of written bytes. */
+        void saved(long nanos, long bytes);
+
+        /** Outcome of {@code tryQueue}: resources selected for the queue item, or not. */
+        void tryQueue(boolean selected);
+
+        /** Duration of one resource match script evaluation in nanoseconds. */
+        void scriptEvaluated(long nanos);
+    }
+
+    private static volatile Recorder recorder = null;
+
+    private PluginMetrics() {}
+
+    // ---------------------------------------------------------------------------
+    /** Installs the *recorder*, null switches the measuring off. */
+    public static void setRecorder(@CheckForNull final Recorder recorder) {
+        PluginMetrics.recorder = recorder;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * The lock step got the *locked* resources for the *requirements* after *waitMillis* (0 when
+     * they were free immediately).
+     */
+    public static void lockAcquired(
+            @NonNull final List<LockableResourcesStruct> requirements,
+            @NonNull final List<LockableResource> locked,
+            final long waitMillis) {
+        final Recorder r = recorder;
+        if (r == null) {
+            return;
+        }
+        r.lockWait(waitMillis);
+        // index based, no iterators
+        for (int i = 0; i < requirements.size(); i++) {
+            final String label = requirements.get(i).label;
+            if (label != null && !label.isEmpty()) {
+                r.labelWait(label, waitMillis);
+            }
+        }
+        for (int i = 0; i < locked.size(); i++) {
+            r.resourceWait(locked.get(i).getName(), waitMillis);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    public static void syncHeld(final long waitNanos, final long heldNanos) {
+        final Recorder r = recorder;
+        if (r != null) {
+            r.syncHeld(waitNanos, heldNanos);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    public static void saved(final long nanos, final long bytes) {
+        final Recorder r = recorder;
+        if (r != null) {
+            r.saved(nanos, bytes);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    public static void tryQueue(final boolean selected) {
+        final Recorder r = recorder;
+        if (r != null) {
+            r.tryQueue(selected);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    public static void scriptEvaluated(final long nanos) {
+        final Recorder r = recorder;
+        if (r != null) {
+            r.scriptEvaluated(nanos);
+        }
+    }
+}
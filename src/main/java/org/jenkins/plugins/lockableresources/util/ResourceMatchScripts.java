@@ -0,0 +1,343 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.UnapprovedUsageException;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.springframework.security.core.Authentication;
+
+// -----------------------------------------------------------------------------
+/**
+ * Evaluation of the resource match scripts ({@code resourceMatchScript}).
+ *
+ * <p>The same script is evaluated for each resource. Instead of compiling it again for each of them
+ * (what {@link SecureGroovyScript#evaluate} does), the script is compiled once and only a new
+ * instance with own binding is created for each resource. Scripts with additional classpath entries
+ * are evaluated the old way.
+ *
+ * <p>The callers hold {@code syncResources}. Per default the resources are checked serially by the
+ * calling thread. Parallel checking on a bounded pool is opt-in, see {@link
+ * Constants#SYSTEM_PROPERTY_SCRIPT_PARALLELISM}: the pool threads do not own the lock, so a script
+ * calling the lockable resources manager would block. The scripts get the resource data in the
+ * binding and shall not call the manager itself.
+ */
+@Restricted(NoExternalUse.class)
+public final class ResourceMatchScripts {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceMatchScripts.class.getName());
+
+    /** Compiled scripts by (sandbox flag, script text). */
+    private static final Cache<String, Compiled> CACHE =
+            Caffeine.newBuilder().maximumSize(100).recordStats().build();
+
+    /** Amount of threads checking the resources, 1 (default) checks them by the calling thread. */
+    private static volatile int parallelism =
+            SystemProperties.getInteger(Constants.SYSTEM_PROPERTY_SCRIPT_PARALLELISM, 1);
+
+    /** Do not split the work into smaller pieces than this. */
+    private static final int MIN_CHUNK = 64;
+
+    private static volatile ForkJoinPool pool;
+
+    private ResourceMatchScripts() {}
+
+    /** Check of one item, like {@code resource.scriptMatches(script, params)}. */
+    @FunctionalInterface
+    public interface Matcher<T> {
+        boolean matches(T item) throws ExecutionException;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Evaluates the *script* with given *binding*.
+     *
+     * @throws Exception Script can not be evaluated (not approved, compile error, runtime error).
+     */
+    public static Object evaluate(@NonNull final SecureGroovyScript script, @NonNull final Binding binding)
+            throws Exception {
+        final long start = System.nanoTime();
+        try {
+            final Compiled compiled = compile(script);
+            if (compiled == null) {
+                return script.evaluate(Jenkins.get().getPluginManager().uberClassLoader, binding, null);
+            }
+            return compiled.run(binding);
+        } finally {
+            PluginMetrics.scriptEvaluated(System.nanoTime() - start);
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns all matching *items* in their original order. */
+    @NonNull
+    public static <T> List<T> filter(@NonNull final List<T> items, @NonNull final Matcher<T> matcher)
+            throws ExecutionException {
+        final int threads = parallelism;
+        if (threads <= 1 || items.size() <= MIN_CHUNK) {
+            List<T> found = new ArrayList<>();
+            for (T item : items) {
+                if (matcher.matches(item)) {
+                    found.add(item);
+                }
+            }
+            return found;
+        }
+
+        // the scripts shall run with the same permissions like the caller
+        final Authentication auth = Jenkins.getAuthentication2();
+        final int chunkSize = Math.max(MIN_CHUNK, (items.size() + threads - 1) / threads);
+        final List<ForkJoinTask<boolean[]>> tasks = new ArrayList<>();
+        for (int from = 0; from < items.size(); from += chunkSize) {
+            final List<T> chunk = items.subList(from, Math.min(items.size(), from + chunkSize));
+            tasks.add(getPool(threads).submit(() -> {
+                try (ACLContext ctx = ACL.as2(auth)) {
+                    boolean[] matches = new boolean[chunk.size()];
+                    for (int i = 0; i < matches.length; i++) {
+                        matches[i] = matcher.matches(chunk.get(i));
+                    }
+                    return matches;
+                }
+            }));
+        }
+
+        List<T> found = new ArrayList<>();
+        int index = 0;
+        for (ForkJoinTask<boolean[]> task : tasks) {
+            final boolean[] matches;
+            try {
+                matches = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionException(e);
+            } catch (ExecutionException e) {
+                // failure of the script itself, report it like the serial evaluation does
+                if (e.getCause() instanceof ExecutionException) {
+                    throw (ExecutionException) e.getCause();
+                }
+                throw e;
+            }
+            for (boolean match : matches) {
+                if (match) {
+                    found.add(items.get(index));
+                }
+                index++;
+            }
+        }
+        return found;
+    }
+
+    // ---------------------------------------------------------------------------
+    /**
+     * Returns key of the results of the *script* evaluated with *params*, or null when the results
+     * can not be shared (scripts with additional classpath entries).
+     *
+     * <p>The approval is checked on each call, also when the results are known already. A not
+     * sandboxed script must be approved. The results of sandboxed scripts depend on the approved
+     * signatures, they are dropped on each change of the approvals, see {@link ApprovalListener}.
+     *
+     * @throws ExecutionException The script is not approved (anymore).
+     */
+    @CheckForNull
+    public static ResultKey resultKey(
+            @NonNull final SecureGroovyScript script, @CheckForNull final Map<String, Object> params)
+            throws ExecutionException {
+        if (script.getClasspath() != null && !script.getClasspath().isEmpty()) {
+            return null;
+        }
+        if (!script.isSandbox()) {
+            try {
+                ScriptApproval.get().using(script.getScript(), GroovyLanguage.get());
+            } catch (UnapprovedUsageException e) {
+                throw new ExecutionException(
+                        "Cannot get boolean result out of groovy expression. See system log for more info", e);
+            }
+        }
+        return new ResultKey(script.getScript(), script.isSandbox(), params);
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Remove all compiled scripts. */
+    public static void invalidateAll() {
+        CACHE.invalidateAll();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Amount of scripts, which had to be compiled. */
+    public static long getCompileCount() {
+        return CACHE.stats().missCount();
+    }
+
+    // ---------------------------------------------------------------------------
+    /** For testing purpose. Changes the amount of threads, see {@link #parallelism}. */
+    static void setParallelism(final int threads) {
+        synchronized (ResourceMatchScripts.class) {
+            parallelism = threads;
+            shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Stops the pool threads, the pool is created again on next parallel check. */
+    @Terminator
+    @Restricted(NoExternalUse.class)
+    public static void shutdown() {
+        final ForkJoinPool p;
+        synchronized (ResourceMatchScripts.class) {
+            p = pool;
+            pool = null;
+        }
+        if (p != null) {
+            p.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    private static ForkJoinPool getPool(final int threads) {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (ResourceMatchScripts.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ForkJoinPool(threads);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Returns compiled *script*, or null when it can not be reused. */
+    @CheckForNull
+    private static Compiled compile(@NonNull final SecureGroovyScript script) {
+        if (script.getClasspath() != null && !script.getClasspath().isEmpty()) {
+            return null;
+        }
+        final String text = script.getScript();
+        if (!script.isSandbox()) {
+            // throws UnapprovedUsageException when not approved (yet), checked on each use
+            ScriptApproval.get().using(text, GroovyLanguage.get());
+        }
+        final String key = (script.isSandbox() ? "sandbox:" : "approved:") + text;
+        return CACHE.get(key, k -> new Compiled(text, script.isSandbox()));
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Script text, sandbox flag and parameters of one evaluation. */
+    public static final class ResultKey {
+
+        private final String script;
+        private final boolean sandbox;
+        private final Map<String, Object> params;
+        private final int hash;
+
+        ResultKey(final String script, final boolean sandbox, @CheckForNull final Map<String, Object> params) {
+            this.script = script;
+            this.sandbox = sandbox;
+            this.params = params == null ? new HashMap<>() : new HashMap<>(params);
+            this.hash = Objects.hash(script, sandbox, this.params);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResultKey)) {
+                return false;
+            }
+            final ResultKey other = (ResultKey) o;
+            return this.hash == other.hash
+                    && this.sandbox == other.sandbox
+                    && this.script.equals(other.script)
+                    && this.params.equals(other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Drops the known script results, when the script approvals (signatures) have been changed. */
+    @Extension
+    public static final class ApprovalListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ScriptApproval) {
+                LockableResourcesManager.get().invalidateScriptResults();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    /** Compiled script class, each evaluation creates a new instance of it. */
+    private static final class Compiled {
+
+        private final Class<? extends Script> scriptClass;
+        private final boolean sandbox;
+
+        Compiled(final String text, final boolean sandbox) {
+            final ClassLoader loader = Jenkins.get().getPluginManager().uberClassLoader;
+            final GroovyShell shell = sandbox
+                    ? new GroovyShell(
+                            GroovySandbox.createSecureClassLoader(loader),
+                            new Binding(),
+                            GroovySandbox.createSecureCompilerConfiguration())
+                    : new GroovyShell(loader);
+            this.scriptClass = shell.parse(text).getClass();
+            this.sandbox = sandbox;
+            LOGGER.log(Level.FINE, "Compiled resource match script {0}", this.scriptClass);
+        }
+
+        Object run(final Binding binding) {
+            final Script instance = InvokerHelper.createScript(this.scriptClass, binding);
+            if (!this.sandbox) {
+                return instance.run();
+            }
+            try (GroovySandbox.Scope scope = new GroovySandbox().enter()) {
+                return instance.run();
+            }
+        }
+    }
+}
@@ -82,11 +82,11 @@ function replaceNote(resourceName) {
   });
 }
 
-function format(d) {
-  // `d` is the original data object for the row
+function format(row) {
   // show all the hidden columns in the child row
   var hiddenRows = getHiddenColumns();
-  return hiddenRows.map(i => d[i]).join("<br>");
+  var table = jQuery("#lockable-resources").DataTable();
+  return hiddenRows.map(i => table.cell(row.index(), i).render("display")).join("<br>");
 }
 
 function getHiddenColumns() {
@@ -105,6 +105,145 @@ function i18n(messageId, arg0, arg1) {
   return document.querySelector("#i18n").getAttribute("data-" + messageId).replace("{0}", arg0).replace("{1}", arg1);
 }
 
+function escapeHtml(text) {
+  return (text == null ? "" : String(text))
+    .replace(/&/g, "&amp;")
+    .replace(/</g, "&lt;")
+    .replace(/>/g, "&gt;")
+    .replace(/"/g, "&quot;")
+    .replace(/'/g, "&#39;");
+}
+
+// texts of the server side resources table, see tableResources/table.jelly
+function resourcesText(table, messageId, arg0, arg1) {
+  return table.getAttribute("data-text-" + messageId).replace("{0}", arg0).replace("{1}", arg1);
+}
+
+function renderResource(table, resource) {
+  var html = "<div class='row justify-content-end'><div class='col-auto'><strong>" + escapeHtml(resource.name) +
+    "</strong></div><div class='col'>";
+  if (resource.ephemeral) {
+    html += "<span class='static-label'>" + escapeHtml(resourcesText(table, "ephemeral")) + "</span>";
+  }
+  html += "</div><div class='col-auto jenkins-!-margin-right-2'>";
+  if (resource.actions.includes("editNote")) {
+    html += "<a class='jenkins-table__link lockable-resources-replace-note' href='editNote' data-resource-name='" +
+      escapeHtml(resource.name) + "'>" + escapeHtml(resourcesText(table, "edit-note")) + "</a>";
+  }
+  html += "</div></div>";
+  if (resource.description) {
+    html += "<div class='row'><div class='col'>" + escapeHtml(resource.description) + "</div></div>";
+  }
+  html += "<div class='row'><div id='note-" + escapeHtml(resource.name) + "'>";
+  if (resource.note) {
+    // already rendered by the markup formatter
+    html += "<div class='note-wrapper jenkins-!-padding-2 jenkins-!-margin-right-1 overflow-auto'>" +
+      resource.note + "</div>";
+  }
+  return html + "</div></div>";
+}
+
+function renderStatus(table, resource) {
+  var html;
+  switch (resource.status) {
+    case "RESERVED":
+      html = resourcesText(table, "reserved", escapeHtml(resource.reservedBy));
+      break;
+    case "LOCKED":
+      html = resourcesText(table, "locked", escapeHtml(table.dataset.rootUrl + "/" + resource.buildUrl),
+        escapeHtml(resource.buildName));
+      break;
+    case "QUEUED":
+      html = resourcesText(table, "queued", escapeHtml(resource.queueItemProject), escapeHtml(resource.queueItemId));
+      break;
+    default:
+      html = resourcesText(table, "free");
+  }
+  if (resource.ago) {
+    html += "<br />" + escapeHtml(resourcesText(table, "ago", resource.ago));
+  }
+  return html;
+}
+
+function renderLabels(table, resource) {
+  return resource.labels.map(label => "<a class='jenkins-table__link model-link' href='" +
+    escapeHtml(table.dataset.rootUrl + "/label/" + encodeURIComponent(label)) + "'>" + escapeHtml(label) +
+    "<button class='jenkins-menu-dropdown-chevron'></button></a>").join(" ");
+}
+
+function renderProperties(resource) {
+  if (resource.properties.length == 0) {
+    return "";
+  }
+  return "<div class='table-responsive'><table class='jenkins-table jenkins-!-margin-0 table-properties'><tbody>" +
+    resource.properties.map(p => "<tr><td>" + escapeHtml(p.name) + "</td><td>" + escapeHtml(p.value) +
+      "</td></tr>").join("") + "</tbody></table></div>";
+}
+
+const RESOURCE_ACTIONS = {
+  unlock: "jenkins-button j.jenkins-!-warning-color",
+  steal: "jenkins-button jenkins-!-destructive-color",
+  unreserve: "jenkins-button jenkins-!-success-color",
+  reassign: "jenkins-button jenkins-button--primary",
+  reset: "jenkins-button jenkins-!-destructive-color",
+  reserve: "jenkins-button jenkins-button--primary",
+};
+
+function renderActions(table, resource) {
+  return resource.actions.filter(action => action in RESOURCE_ACTIONS).map(action =>
+    "<button data-action='" + action + "' class='" + RESOURCE_ACTIONS[action] +
+    " lockable-resources-action-button' tooltip='" + escapeHtml(resourcesText(table, action + "-detail")) + "'>" +
+    escapeHtml(resourcesText(table, action)) + "</button>").join(" ");
+}
+
+const STATUS_COLORS = {
+  RESERVED: "destructive",
+  LOCKED: "warning",
+  QUEUED: "warning",
+  FREE: "success",
+};
+
+// large resource pools are loaded page by page from the server (doTableData)
+function initServerSideTable(table) {
+  var configuration = JSON.parse(table.dataset.tableConfiguration);
+  configuration.lengthMenu = [10, 25, 50, 100];
+  configuration.serverSide = true;
+  configuration.processing = true;
+  configuration.searchDelay = 500;
+  configuration.ajax = {
+    url: "tableData",
+    data: function (request) {
+      // optional label filter, like lockable-resources/?label=my-label
+      var label = new URLSearchParams(window.location.search).get("label");
+      if (label) {
+        request.label = label;
+      }
+    },
+  };
+  configuration.columns = [
+    { data: "index" },
+    { data: "name", render: (data, type, row) => renderResource(table, row) },
+    { data: "status", render: (data, type, row) => renderStatus(table, row) },
+    { data: "timestampText", defaultContent: "" },
+    { data: "labels", render: (data, type, row) => renderLabels(table, row) },
+    { data: "properties", render: (data, type, row) => renderProperties(row) },
+    { data: "actions", orderable: false, render: (data, type, row) => renderActions(table, row) },
+  ];
+  configuration.columnDefs = [
+    { targets: 0, className: "dt-control" },
+    { targets: 5, visible: false, orderable: false },
+  ];
+  configuration.createdRow = function (row, data) {
+    row.setAttribute("data-resource-name", data.name);
+    row.cells[2].classList.add("jenkins-!-" + STATUS_COLORS[data.status] + "-color");
+  };
+  configuration.drawCallback = function () {
+    // tooltips of the new buttons
+    Behaviour.applySubtree(table);
+  };
+  jQuery(table).DataTable(configuration);
+}
+
 jQuery(document).ready(function () {
 
   // Add event listener to store last opened tab
@@ -141,17 +280,19 @@ jQuery(document).ready(function () {
       tr.removeClass('shown');
     } else {
       // Open this row
-      row.child(format(row.data())).show();
+      row.child(format(row)).show();
       tr.addClass('shown');
     }
   });
 
-  document.querySelectorAll(".lockable-resources-action-button").forEach(function (button) {
-    button.addEventListener("click", function (event) {
-      const target = event.target;
-      const action = target.dataset.action;
-      resource_action(target, action);
-    });
+  const resourcesTable = document.getElementById("lockable-resources");
+  if (resourcesTable && resourcesTable.dataset.serverSide === "true") {
+    initServerSideTable(resourcesTable);
+  }
+
+  // delegated, the rows of the server side table are created later
+  jQuery('#lockable-resources').on('click', '.lockable-resources-action-button', function () {
+    resource_action(this, this.dataset.action);
   });
 
   document.querySelectorAll(".lockable-resources-change-queue-order").forEach(function (button) {
@@ -160,11 +301,9 @@ jQuery(document).ready(function () {
     });
   });
 
-  document.querySelectorAll(".lockable-resources-replace-note").forEach(function (anchor) {
-    anchor.addEventListener("click", function (event) {
-      event.preventDefault();
-      replaceNote(event.target.dataset.resourceName);
-    });
+  jQuery('#lockable-resources').on('click', '.lockable-resources-replace-note', function (event) {
+    event.preventDefault();
+    replaceNote(this.dataset.resourceName);
   });
 });
 
@@ -0,0 +1,94 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ChangeFeedTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void stateChangesAreReported() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("r1");
+        LockableResource r1 = lrm.fromName("r1");
+        ChangeFeed feed = lrm.getChangeFeed();
+        final long start = feed.getRevision();
+
+        r1.setNote("no state change");
+        lrm.reserve(Collections.singletonList(r1), "someone");
+        lrm.unreserve(Collections.singletonList(r1));
+
+        JSONObject result = feed.since(start, 0);
+        assertTrue(result.getBoolean("complete"));
+        assertEquals(start + 2, result.getLong("revision"));
+        JSONArray changes = result.getJSONArray("changes");
+        assertEquals("note is not reported", 2, changes.size());
+        assertEquals("RESERVE", changes.getJSONObject(0).getString("type"));
+        assertEquals("r1", changes.getJSONObject(0).getString("resource"));
+        assertEquals("FREE", changes.getJSONObject(0).getString("previous"));
+        assertEquals("UNRESERVE", changes.getJSONObject(1).getString("type"));
+        assertEquals(start + 2, changes.getJSONObject(1).getLong("revision"));
+
+        // only the newer ones
+        changes = feed.since(start + 1, 0).getJSONArray("changes");
+        assertEquals(1, changes.size());
+        assertEquals("UNRESERVE", changes.getJSONObject(0).getString("type"));
+
+        // from a previous Jenkins run
+        result = feed.since(start + 100, 0);
+        assertFalse(result.getBoolean("complete"));
+        assertTrue(result.getJSONArray("changes").isEmpty());
+    }
+
+    @Test
+    public void waitsForNextChange() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("r1");
+        ChangeFeed feed = lrm.getChangeFeed();
+        final long start = feed.getRevision();
+
+        CompletableFuture<JSONObject> poll = CompletableFuture.supplyAsync(() -> {
+            try {
+                return feed.since(start, TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse("waits for changes", poll.isDone());
+
+        lrm.reserve(Collections.singletonList(lrm.fromName("r1")), "someone");
+        JSONObject result = poll.get(10, TimeUnit.SECONDS);
+        assertEquals(1, result.getJSONArray("changes").size());
+    }
+
+    @Test
+    public void onlyLastChangesAreKept() throws Exception {
+        ChangeFeed feed = new ChangeFeed(2);
+        LockableResource resource = new LockableResource("r1");
+        feed.register(resource);
+        final long start = feed.getRevision();
+
+        for (int i = 0; i < 3; i++) {
+            resource.setReservedBy(i % 2 == 0 ? "someone" : null);
+            feed.resourceChanged(resource);
+        }
+
+        assertFalse("first change is lost", feed.since(start, 0).getBoolean("complete"));
+        JSONObject result = feed.since(start + 1, 0);
+        assertTrue(result.getBoolean("complete"));
+        assertEquals(2, result.getJSONArray("changes").size());
+    }
+}
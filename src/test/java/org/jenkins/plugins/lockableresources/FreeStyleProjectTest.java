@@ -6,7 +6,9 @@ import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import hudson.Launcher;
@@ -23,12 +25,15 @@ import hudson.triggers.TimerTrigger;
 import hudson.util.OneShotEvent;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
 import org.jenkins.plugins.lockableresources.actions.LockableResourcesRootAction;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesQueueTaskDispatcher;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.Utils;
 import org.jenkins.plugins.lockableresources.util.Constants;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
@@ -66,6 +71,52 @@ public class FreeStyleProjectTest {
         j.assertBuildStatus(Result.SUCCESS, b1);
     }
 
+    @Test
+    public void requiredResourcesParsedOncePerConfiguration() throws Exception {
+        LockableResourcesManager.get().createResource("resource1");
+        FreeStyleProject p = j.createFreeStyleProject("p");
+        p.addProperty(new RequiredResourcesProperty("resource1", null, null, null, null));
+
+        LockableResourcesStruct first = Utils.requiredResources(p);
+        assertNotNull(first);
+        // parsed once, but each caller gets its own copy
+        LockableResourcesStruct again = Utils.requiredResources(p);
+        assertNotSame(first, again);
+        assertSame(first.required.get(0), again.required.get(0));
+        assertTrue(again.queuedAt >= first.queuedAt);
+        assertTrue(Utils.isRequirementCached(p));
+
+        // changed configuration
+        p.removeProperty(RequiredResourcesProperty.class);
+        p.addProperty(new RequiredResourcesProperty("resource2", null, null, null, null));
+        LockableResourcesStruct second = Utils.requiredResources(p);
+        assertNotSame(first, second);
+        assertEquals("resource2", second.required.get(0).getName());
+
+        // removed resource
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        LockableResource resource2 = lrm.fromName("resource2");
+        lrm.removeResources(Collections.singletonList(resource2));
+        LockableResourcesStruct third = Utils.requiredResources(p);
+        assertNotSame(resource2, third.required.get(0));
+        assertSame(lrm.fromName("resource2"), third.required.get(0));
+
+        p.removeProperty(RequiredResourcesProperty.class);
+        assertNull(Utils.requiredResources(p));
+    }
+
+    @Test
+    public void requiredResourcesRemovedWithJob() throws Exception {
+        LockableResourcesManager.get().createResource("resource1");
+        FreeStyleProject p = j.createFreeStyleProject("p");
+        p.addProperty(new RequiredResourcesProperty("resource1", null, null, null, null));
+        assertNotNull(Utils.requiredResources(p));
+        assertTrue(Utils.isRequirementCached(p));
+
+        p.delete();
+        assertFalse(Utils.isRequirementCached(p));
+    }
+
     @Test
     public void migrateToScript() throws Exception {
         LockableResourcesManager.get().createResource("resource1");
@@ -2,17 +2,41 @@ package org.jenkins.plugins.lockableresources;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
 
+import com.codahale.metrics.Timer;
+import hudson.BulkChange;
 import hudson.model.AutoCompletionCandidates;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
 import hudson.model.Item;
+import hudson.model.Run;
 import hudson.model.User;
 import hudson.security.AccessDeniedException3;
 import hudson.util.FormValidation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -158,6 +182,381 @@ public class LockableResourceManagerTest {
         d.doAutoCompleteResourceNames("", item);
     }
 
+    @Test
+    public void fromNameFollowsResourceChanges() {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        lrm.createResourceWithLabel("resource2", "label1");
+
+        LockableResource r1 = lrm.fromName("resource1");
+        assertNotNull(r1);
+        assertEquals("resource1", r1.getName());
+        assertNotNull(lrm.fromName("resource2"));
+        assertNull(lrm.fromName("resource3"));
+
+        lrm.removeResources(Collections.singletonList(r1));
+        assertNull(lrm.fromName("resource1"));
+        assertNotNull(lrm.fromName("resource2"));
+
+        // declared resources replace the whole list
+        lrm.setDeclaredResources(Arrays.asList(new LockableResource("resource3"), new LockableResource("resource4")));
+        assertNull(lrm.fromName("resource2"));
+        assertNotNull(lrm.fromName("resource3"));
+        assertNotNull(lrm.fromName("resource4"));
+
+        // direct changes of the list are detected as well
+        lrm.getResources().add(new LockableResource("resource5"));
+        assertNotNull(lrm.fromName("resource5"));
+
+        // also when the amount of resources stays the same
+        final int position = lrm.getResources().indexOf(lrm.fromName("resource5"));
+        lrm.getResources().set(position, new LockableResource("resource6"));
+        assertNull(lrm.fromName("resource5"));
+        assertNotNull(lrm.fromName("resource6"));
+    }
+
+    @Test
+    public void unlockManyBuildsAtOnce() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        lrm.createResource("resource2");
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build1 = j.buildAndAssertSuccess(project);
+        FreeStyleBuild build2 = j.buildAndAssertSuccess(project);
+        lrm.lock(lrm.fromNames(Collections.singletonList("resource1")), build1);
+        lrm.lock(lrm.fromNames(Collections.singletonList("resource2")), build2);
+        assertTrue(lrm.fromName("resource1").isLocked());
+        assertTrue(lrm.fromName("resource2").isLocked());
+
+        Map<Run<?, ?>, List<String>> toUnlock = new HashMap<>();
+        toUnlock.put(build1, Collections.singletonList("resource1"));
+        toUnlock.put(build2, Collections.singletonList("resource2"));
+        lrm.unlockNames(toUnlock);
+
+        // ephemeral resources are removed, once free
+        assertNull(lrm.fromName("resource1"));
+        assertNull(lrm.fromName("resource2"));
+    }
+
+    @Test
+    public void labelIndexFollowsResourceChanges() {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1 label2");
+        lrm.createResourceWithLabel("resource2", "label1");
+        lrm.createResourceWithLabel("resource3", "label2");
+        lrm.createResource("resource4");
+
+        assertEquals(Arrays.asList("resource1", "resource2"), names(lrm.getResourcesWithLabel("label1")));
+        assertEquals(Arrays.asList("resource1"), names(lrm.getResourcesWithLabel("label1 && label2")));
+        assertEquals(
+                Arrays.asList("resource1", "resource2", "resource3"),
+                names(lrm.getResourcesWithLabel("label1 || label2")));
+        assertEquals(Arrays.asList("resource3", "resource4"), names(lrm.getResourcesWithLabel("!label1")));
+        assertEquals(Arrays.asList("resource2"), names(lrm.getResourcesWithLabel("label1 && !label2")));
+        assertEquals(Collections.emptyList(), names(lrm.getResourcesWithLabel("label3")));
+
+        // labels changed directly on the resource
+        lrm.fromName("resource4").setLabels("label1");
+        assertEquals(
+                Arrays.asList("resource1", "resource2", "resource4"), names(lrm.getResourcesWithLabel("label1")));
+
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource1")));
+        assertEquals(Arrays.asList("resource2", "resource4"), names(lrm.getResourcesWithLabel("label1")));
+        assertEquals(new TreeSet<>(Arrays.asList("label1", "label2")), new TreeSet<>(lrm.getAllLabels()));
+    }
+
+    @Test
+    public void directUnreserveInvalidatesCachedCandidates() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.fromName("resource1").reserve("user");
+        LockableResourcesStruct requirement = new LockableResourcesStruct(null, "label1", 2);
+        Logger log = Logger.getLogger(LockableResourceManagerTest.class.getName());
+
+        // caches the candidates [resource1] for the queue item
+        assertNull(lrm.tryQueue(requirement, 1, "project", 2, new HashMap<>(), log));
+        lrm.createResourceWithLabel("resource2", "label1");
+
+        // unreserved directly on the resource, not by the manager
+        lrm.fromName("resource1").unReserve();
+        assertEquals(
+                Arrays.asList("resource1", "resource2"),
+                names(lrm.tryQueue(requirement, 1, "project", 2, new HashMap<>(), log)));
+    }
+
+    @Test
+    public void emptyCandidatesAreInvalidatedByMatchingResourcesOnly() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.createResourceWithLabel("resource2", "other");
+        lrm.fromName("resource1").reserve("user");
+        lrm.fromName("resource2").reserve("user");
+        LockableResourcesStruct requirement = new LockableResourcesStruct(null, "label2", 1);
+        Logger log = Logger.getLogger(LockableResourceManagerTest.class.getName());
+
+        // no resource carries label2, the empty candidates are cached
+        assertNull(lrm.tryQueue(requirement, 1, "project", 1, new HashMap<>(), log));
+        final long hits = lrm.getCachedCandidatesStats().hitCount();
+
+        // can not match, the cached result is kept
+        lrm.fromName("resource2").unReserve();
+        assertNull(lrm.tryQueue(requirement, 1, "project", 1, new HashMap<>(), log));
+        assertEquals(hits + 1, lrm.getCachedCandidatesStats().hitCount());
+
+        // got the label meanwhile, evaluated again when freed
+        lrm.fromName("resource1").setLabels("label1 label2");
+        lrm.fromName("resource1").unReserve();
+        assertEquals(
+                Arrays.asList("resource1"), names(lrm.tryQueue(requirement, 1, "project", 1, new HashMap<>(), log)));
+        assertEquals(hits + 1, lrm.getCachedCandidatesStats().hitCount());
+    }
+
+    @Test
+    public void queuedResourcesFollowProject() {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        lrm.createResource("resource2");
+        lrm.createResource("resource3");
+
+        lrm.fromName("resource3").setQueued(1, "project1");
+        lrm.fromName("resource1").setQueued(1, "project1");
+        lrm.fromName("resource2").setQueued(2, "project2");
+        assertEquals(Arrays.asList("resource1", "resource3"), names(lrm.getResourcesFromProject("project1")));
+        assertEquals(Arrays.asList("resource2"), names(lrm.getResourcesFromProject("project2")));
+
+        lrm.fromName("resource1").unqueue();
+        lrm.fromName("resource2").setQueued(3, "project1");
+        assertEquals(Arrays.asList("resource2", "resource3"), names(lrm.getResourcesFromProject("project1")));
+        assertEquals(Collections.emptyList(), names(lrm.getResourcesFromProject("project2")));
+
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource3")));
+        assertEquals(Arrays.asList("resource2"), names(lrm.getResourcesFromProject("project1")));
+    }
+
+    @Test
+    public void resourcesSnapshotFollowsChanges() {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResource("resource1");
+        lrm.createResource("resource2");
+
+        List<LockableResource> snapshot = lrm.getResourcesSnapshot();
+        assertEquals(Arrays.asList("resource1", "resource2"), names(snapshot));
+        assertNotSame(lrm.fromName("resource1"), snapshot.get(0));
+        // not changed, the same snapshot
+        assertSame(snapshot, lrm.getResourcesSnapshot());
+
+        lrm.fromName("resource2").setNote("note");
+        List<LockableResource> changed = lrm.getResourcesSnapshot();
+        assertEquals("note", changed.get(1).getNote());
+        assertEquals("", snapshot.get(1).getNote());
+        // unchanged resources are shared between the snapshots
+        assertSame(snapshot.get(0), changed.get(0));
+
+        lrm.createResource("resource3");
+        assertEquals(Arrays.asList("resource1", "resource2", "resource3"), names(lrm.getResourcesSnapshot()));
+        assertSame(changed.get(0), lrm.getResourcesSnapshot().get(0));
+
+        final long removed = lrm.getResourcesSnapshotRemovedVersion();
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource2")));
+        List<LockableResource> afterRemove = lrm.getResourcesSnapshot();
+        assertEquals(Arrays.asList("resource1", "resource3"), names(afterRemove));
+        assertSame(changed.get(0), afterRemove.get(0));
+        assertTrue(lrm.getResourcesSnapshotRemovedVersion() > removed);
+
+        // changes are published together on the next read
+        lrm.fromName("resource1").setNote("note1");
+        lrm.fromName("resource3").setNote("note3");
+        List<LockableResource> batch = lrm.getResourcesSnapshot();
+        assertEquals("note1", batch.get(0).getNote());
+        assertEquals("note3", batch.get(1).getNote());
+        assertSame(batch, lrm.getResourcesSnapshot());
+
+        // changed directly in the list
+        lrm.getResources().add(new LockableResource("resource4"));
+        assertEquals(Arrays.asList("resource1", "resource3", "resource4"), names(lrm.getResourcesSnapshot()));
+    }
+
+    @Test
+    public void scriptResultsAreReused() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.createResourceWithLabel("resource2", "label2");
+        final String text = "resourceLabels.contains(label)";
+        ScriptApproval.get().preapprove(text, GroovyLanguage.get());
+        SecureGroovyScript script = new SecureGroovyScript(text, false, null).configuring(ApprovalContext.create());
+        Timer evaluations = (Timer) j.jenkins
+                .getExtensionList(LockableResourcesMetricProvider.class)
+                .get(0)
+                .getMetricSet()
+                .getMetrics()
+                .get("lockable-resources.script.evaluation");
+        final long before = evaluations.getCount();
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("label", "label1");
+        assertEquals(
+                Collections.singletonList(lrm.fromName("resource1")), lrm.getResourcesMatchingScript(script, params));
+        assertEquals(before + 2, evaluations.getCount());
+
+        // same script and parameters (other instance)
+        assertEquals(
+                Collections.singletonList(lrm.fromName("resource1")),
+                lrm.getResourcesMatchingScript(script, new HashMap<>(params)));
+        assertEquals(before + 2, evaluations.getCount());
+
+        // other parameters
+        assertEquals(
+                Collections.singletonList(lrm.fromName("resource2")),
+                lrm.getResourcesMatchingScript(script, Collections.singletonMap("label", "label2")));
+        assertEquals(before + 4, evaluations.getCount());
+
+        // only the changed resources are evaluated again
+        lrm.fromName("resource2").setLabels("label1");
+        assertEquals(2, lrm.getResourcesMatchingScript(script, params).size());
+        assertEquals(before + 5, evaluations.getCount());
+        lrm.fromName("resource1").setNote("note");
+        assertEquals(2, lrm.getResourcesMatchingScript(script, params).size());
+        assertEquals(before + 6, evaluations.getCount());
+
+        // the approval is checked, also when all results are known
+        ScriptApproval.get().clearApprovedScripts();
+        assertThrows(ExecutionException.class, () -> lrm.getResourcesMatchingScript(script, params));
+        assertEquals(before + 6, evaluations.getCount());
+    }
+
+    @Test
+    public void labelCountersFollowResourceChanges() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1 label2");
+        lrm.createResourceWithLabel("resource2", "label1");
+        assertCounters(lrm, "label1", 2, 2);
+        assertCounters(lrm, "label2", 1, 1);
+
+        lrm.reserve(Collections.singletonList(lrm.fromName("resource1")), "user");
+        assertCounters(lrm, "label1", 2, 1);
+        assertCounters(lrm, "label2", 1, 0);
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        lrm.lock(Collections.singletonList(lrm.fromName("resource2")), build);
+        assertCounters(lrm, "label1", 2, 0);
+
+        lrm.fromName("resource1").unReserve();
+        lrm.fromName("resource2").setLabels("label3");
+        assertCounters(lrm, "label1", 1, 1);
+        assertCounters(lrm, "label2", 1, 1);
+        assertCounters(lrm, "label3", 1, 0);
+
+        lrm.removeResources(Collections.singletonList(lrm.fromName("resource1")));
+        assertNull(lrm.getLabelCounters().get("label1"));
+    }
+
+    @Test
+    public void lockAndUnlockStayWithinAllocationBudget() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        // the log messages shall not be built at all
+        assumeFalse(Logger.getLogger(LockableResourcesManager.class.getName()).isLoggable(Level.FINE));
+
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        // not ephemeral, the unlock would remove them
+        for (int i = 0; i < 150; i++) {
+            assertTrue(lrm.addResource(new LockableResource("resource" + i)));
+        }
+        List<LockableResource> all = new ArrayList<>(lrm.getResources());
+        List<LockableResource> few = new ArrayList<>(all.subList(0, 50));
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+
+        // only the lock and unlock paths, not the saving
+        try (BulkChange bc = new BulkChange(lrm)) {
+            allocatedPerCycle(threads, lrm, all, build);
+            final long fewBytes = allocatedPerCycle(threads, lrm, few, build);
+            final long allBytes = allocatedPerCycle(threads, lrm, all, build);
+            // the costs per call cancel out, an eager log string adds to the costs per resource
+            final long perResource = (allBytes - fewBytes) / (all.size() - few.size());
+            assertTrue(
+                    "allocated " + perResource + " bytes per resource and lock/unlock (" + fewBytes + " / "
+                            + allBytes + " bytes per cycle)",
+                    perResource < 1024);
+        }
+    }
+
+    private static long allocatedPerCycle(
+            com.sun.management.ThreadMXBean threads,
+            LockableResourcesManager lrm,
+            List<LockableResource> resources,
+            Run<?, ?> build) {
+        final long thread = Thread.currentThread().getId();
+        final int cycles = 100;
+        // warm up
+        for (int i = 0; i < cycles; i++) {
+            lockAndUnlock(lrm, resources, build);
+        }
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < cycles; i++) {
+            lockAndUnlock(lrm, resources, build);
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / cycles;
+    }
+
+    @Test
+    public void lockAndUnlockDoNotRenderResources() throws Exception {
+        assumeFalse(Logger.getLogger(LockableResourcesManager.class.getName()).isLoggable(Level.FINE));
+
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        List<RenderCountingResource> counting = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            RenderCountingResource resource = new RenderCountingResource("resource" + i);
+            assertTrue(lrm.addResource(resource));
+            counting.add(resource);
+        }
+        List<LockableResource> resources = new ArrayList<>(counting);
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+
+        try (BulkChange bc = new BulkChange(lrm)) {
+            for (int i = 0; i < 10; i++) {
+                lockAndUnlock(lrm, resources, build);
+            }
+        }
+        for (RenderCountingResource resource : counting) {
+            assertEquals("log message built for " + resource.getName(), 0, resource.rendered);
+        }
+    }
+
+    /** Counts {@link #toString()} calls, each of them is a log message built without need. */
+    private static final class RenderCountingResource extends LockableResource {
+        private static final long serialVersionUID = 1L;
+
+        private transient int rendered = 0;
+
+        RenderCountingResource(String name) {
+            super(name);
+        }
+
+        @Override
+        public String toString() {
+            this.rendered++;
+            return super.toString();
+        }
+    }
+
+    private static void lockAndUnlock(LockableResourcesManager lrm, List<LockableResource> resources, Run<?, ?> build) {
+        assertTrue(lrm.lock(resources, build));
+        lrm.unlockResources(resources, build);
+        assertTrue(lrm.fromName("resource0").isFree());
+    }
+
+    private static void assertCounters(LockableResourcesManager lrm, String label, int assigned, int free) {
+        int[] counters = lrm.getLabelCounters().get(label);
+        assertNotNull(label, counters);
+        assertEquals(label + " assigned", assigned, counters[0]);
+        assertEquals(label + " free", free, counters[1]);
+    }
+
+    private static List<String> names(List<LockableResource> resources) {
+        return LockableResourcesManager.getResourcesNames(resources);
+    }
+
     private void assertContains(AutoCompletionCandidates c, String... values) {
         assertEquals(new TreeSet<>(Arrays.asList(values)), new TreeSet<>(c.getValues()));
     }
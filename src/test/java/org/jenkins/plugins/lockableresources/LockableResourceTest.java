@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Date;
 import org.junit.Test;
@@ -101,4 +102,43 @@ public class LockableResourceTest {
     public void testEquals() {
         assertNotEquals(null, instance);
     }
+
+    @Test
+    public void testRevision() {
+        final LockableResource resource = new LockableResource("Name 1");
+        final LockableResource other = new LockableResource("Name 2");
+        assertNotEquals(resource.getRevision(), other.getRevision());
+
+        long revision = resource.getRevision();
+        resource.setLabels("a b");
+        assertNotEquals(revision, resource.getRevision());
+
+        revision = resource.getRevision();
+        resource.setDescription("description");
+        assertNotEquals(revision, resource.getRevision());
+
+        revision = resource.getRevision();
+        resource.setNote("note");
+        assertNotEquals(revision, resource.getRevision());
+
+        // not seen by the resource match scripts
+        revision = resource.getRevision();
+        resource.reserve("user");
+        assertEquals(revision, resource.getRevision());
+    }
+
+    @Test
+    public void testQueuingTimeout() {
+        final LockableResource resource = new LockableResource("Name 1");
+        resource.setQueued(1, "project");
+        final long now = System.currentTimeMillis() / 1000;
+
+        resource.unqueueIfExpired(now);
+        assertTrue(resource.isQueuedByTask(1));
+        assertEquals("project", resource.getQueueItemProject());
+
+        resource.unqueueIfExpired(now + LockableResource.QUEUE_TIMEOUT + 1);
+        assertFalse(resource.isQueued());
+        assertNull(resource.getQueueItemProject());
+    }
 }
@@ -0,0 +1,151 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsSessionRule;
+
+public class LockableResourcesJournalTest {
+
+    @Rule
+    public JenkinsSessionRule sessions = new JenkinsSessionRule();
+
+    @Before
+    public void setUp() {
+        System.clearProperty(Constants.SYSTEM_PROPERTY_DISABLE_SAVE);
+        System.setProperty(Constants.SYSTEM_PROPERTY_ENABLE_SAVE_JOURNAL, "true");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(Constants.SYSTEM_PROPERTY_ENABLE_SAVE_JOURNAL);
+        System.clearProperty(Constants.SYSTEM_PROPERTY_JOURNAL_COMPACTION_THRESHOLD);
+    }
+
+    private static File journalFile(Jenkins jenkins) {
+        return new File(jenkins.getRootDir(), LockableResourcesManager.get().getId() + ".journal");
+    }
+
+    @Test
+    public void stateIsRecoveredFromJournal() throws Throwable {
+        sessions.then(j -> {
+            LockableResourcesManager lrm = LockableResourcesManager.get();
+            lrm.createResourceWithLabel("resource1", "label1");
+            lrm.createResourceWithLabel("resource2", "label1");
+            lrm.createResourceWithLabel("resource3", "label1");
+            lrm.createResourceWithLabel("resource4", "label2");
+
+            lrm.reserve(Collections.singletonList(lrm.fromName("resource1")), "user");
+            lrm.removeResources(Collections.singletonList(lrm.fromName("resource3")));
+            lrm.save();
+
+            WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition("lock('resource2') {\n  semaphore 'wait-inside'\n}", true));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            SemaphoreStep.waitForStart("wait-inside/1", b1);
+            WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+            j.waitForMessage("[resource2] is locked by build " + b1.getFullDisplayName(), b2);
+            assertEquals(1, lrm.getCurrentQueuedContext().size());
+
+            File journal = journalFile(j.jenkins);
+            assertTrue("the changes are in the journal", journal.exists());
+            assertTrue(new LockableResourcesJournal(journal).size() > 0);
+        });
+
+        sessions.then(j -> {
+            LockableResourcesManager lrm = LockableResourcesManager.get();
+            assertFalse("compacted after replay", journalFile(j.jenkins).exists());
+
+            assertEquals("user", lrm.fromName("resource1").getReservedBy());
+            assertTrue(lrm.fromName("resource2").isLocked());
+            assertNull(lrm.fromName("resource3"));
+            assertEquals("label2", lrm.fromName("resource4").getLabels());
+            assertEquals(1, lrm.getCurrentQueuedContext().size());
+
+            WorkflowJob p = j.jenkins.getItemByFullName("p", WorkflowJob.class);
+            WorkflowRun b1 = p.getBuildByNumber(1);
+            WorkflowRun b2 = p.getBuildByNumber(2);
+            SemaphoreStep.success("wait-inside/1", null);
+            j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+            SemaphoreStep.success("wait-inside/2", null);
+            j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+            assertTrue(lrm.getCurrentQueuedContext().isEmpty());
+        });
+    }
+
+    @Test
+    public void journalIsCompactedAtThreshold() throws Throwable {
+        System.setProperty(Constants.SYSTEM_PROPERTY_JOURNAL_COMPACTION_THRESHOLD, "5");
+        sessions.then(j -> {
+            LockableResourcesManager lrm = LockableResourcesManager.get();
+            lrm.createResource("resource1");
+            LockableResource resource = lrm.fromName("resource1");
+            File journal = journalFile(j.jenkins);
+            // the first save writes the whole file
+            lrm.save();
+            assertFalse(journal.exists());
+
+            for (int i = 1; i <= 5; i++) {
+                resource.setNote("note " + i);
+                lrm.save();
+                assertEquals(i, new LockableResourcesJournal(journal).size());
+            }
+            assertFalse(lrm.getConfigFile().asString().contains("note 5"));
+
+            resource.setNote("note 6");
+            lrm.save();
+            assertFalse("compacted", journal.exists());
+            assertTrue(lrm.getConfigFile().asString().contains("note 6"));
+        });
+    }
+
+    @Test
+    public void truncatedLastEntryIsIgnored() throws Throwable {
+        sessions.then(j -> {
+            LockableResourcesManager lrm = LockableResourcesManager.get();
+            lrm.createResource("resource1");
+            lrm.save();
+            lrm.fromName("resource1").setNote("journaled");
+            lrm.save();
+
+            File journal = journalFile(j.jenkins);
+            final List<LockableResourcesJournal.Entry> entries = new LockableResourcesJournal(journal).read();
+            assertEquals(1, entries.size());
+
+            // crash while writing the next entry
+            try (OutputStream out = Files.newOutputStream(journal.toPath(), StandardOpenOption.APPEND);
+                    DataOutputStream data = new DataOutputStream(out)) {
+                data.writeInt(1000);
+                data.write(new byte[10]);
+            }
+            assertEquals(1, new LockableResourcesJournal(journal).read().size());
+        });
+
+        sessions.then(j -> {
+            LockableResource resource = LockableResourcesManager.get().fromName("resource1");
+            assertNotNull(resource);
+            assertEquals("journaled", resource.getNote());
+            assertFalse(journalFile(j.jenkins).exists());
+        });
+    }
+}
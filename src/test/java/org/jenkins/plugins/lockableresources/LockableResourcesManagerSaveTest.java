@@ -0,0 +1,170 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Timer;
+import hudson.BulkChange;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.jenkins.plugins.lockableresources.util.Constants;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockableResourcesManagerSaveTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.clearProperty(Constants.SYSTEM_PROPERTY_DISABLE_SAVE);
+        // long enough, so only flush() writes in the test
+        System.setProperty(Constants.SYSTEM_PROPERTY_SAVE_INTERVAL, "600000");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.clearProperty(Constants.SYSTEM_PROPERTY_SAVE_INTERVAL);
+    }
+
+    @Test
+    public void savesAreCoalescedUntilFlush() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.flush();
+        Timer saves = (Timer) j.jenkins
+                .getExtensionList(LockableResourcesMetricProvider.class)
+                .get(0)
+                .getMetricSet()
+                .getMetrics()
+                .get("lockable-resources.save.duration");
+        final long before = saves.getCount();
+
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.createResourceWithLabel("resource2", "label1");
+        lrm.fromName("resource1").setNote("note");
+        lrm.save();
+        assertEquals("nothing written yet", before, saves.getCount());
+        assertFalse(lrm.getConfigFile().exists()
+                && lrm.getConfigFile().asString().contains("resource2"));
+
+        lrm.flush();
+        assertEquals("all changes written at once", before + 1, saves.getCount());
+        final String xml = lrm.getConfigFile().asString();
+        assertTrue(xml.contains("resource1"));
+        assertTrue(xml.contains("resource2"));
+        assertTrue(xml.contains("<note>note</note>"));
+
+        lrm.flush();
+        assertEquals("nothing more to write", before + 1, saves.getCount());
+    }
+
+    @Test
+    public void savedUnderManagerName() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.flush();
+
+        final String xml = lrm.getConfigFile().asString();
+        assertTrue(xml, xml.contains("<org.jenkins.plugins.lockableresources.LockableResourcesManager"));
+        assertFalse(xml, xml.contains("PersistedState"));
+    }
+
+    @Test
+    public void stateOfOlderVersionsIsReadAndWrittenAgain() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        // written by XmlFile.write(manager) before the state got its own writer
+        try (InputStream baseline = getClass().getResourceAsStream("LockableResourcesManagerSaveTest/baseline.xml")) {
+            Files.copy(baseline, lrm.getConfigFile().getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        lrm.load();
+        assertBaselineState(lrm);
+
+        lrm.save();
+        lrm.flush();
+        final String xml = lrm.getConfigFile().asString();
+        assertTrue(xml, xml.contains("<org.jenkins.plugins.lockableresources.LockableResourcesManager"));
+        assertTrue(xml, xml.contains("<reservedBy>user</reservedBy>"));
+
+        lrm.load();
+        assertBaselineState(lrm);
+    }
+
+    private static void assertBaselineState(LockableResourcesManager lrm) {
+        assertEquals(2, lrm.getResources().size());
+        LockableResource resource1 = lrm.fromName("resource1");
+        assertNotNull(resource1);
+        assertEquals("first resource", resource1.getDescription());
+        assertEquals("label1 label2", resource1.getLabels());
+        assertEquals("some note", resource1.getNote());
+        assertEquals("user", resource1.getReservedBy());
+        assertNotNull(resource1.getReservedTimestamp());
+        assertEquals("ip", resource1.getProperties().get(0).getName());
+        assertEquals("10.0.0.1", resource1.getProperties().get(0).getValue());
+        assertTrue(lrm.fromName("resource2").isFree());
+        assertEquals(1, lrm.getResourcesWithLabel("label2").size());
+    }
+
+    @Test
+    // the lock steps take the fast path only with the background save
+    public void freeResourcesAreLockedWithoutGlobalLock() throws Exception {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("resource1", "label1");
+        lrm.createResourceWithLabel("resource2", "label1");
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build1 = j.buildAndAssertSuccess(project);
+        FreeStyleBuild build2 = j.buildAndAssertSuccess(project);
+
+        // somebody else holds the global lock meanwhile
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (LockableResourcesManager.syncResources) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.start();
+        held.await();
+        BulkChange bc = new BulkChange(lrm);
+        try {
+            List<LockableResource> locked = lrm.tryLockFree(Collections.singletonList("resource1"), build1);
+            assertNotNull(locked);
+            assertEquals("resource1", locked.get(0).getName());
+            // already locked, does not exist
+            assertNull(lrm.tryLockFree(Collections.singletonList("resource1"), build2));
+            assertNull(lrm.tryLockFree(Arrays.asList("resource2", "resource3"), build2));
+            assertNotNull(lrm.tryLockFree(Collections.singletonList("resource2"), build2));
+        } finally {
+            // the save would wait for the global lock
+            bc.abort();
+            release.countDown();
+            holder.join();
+        }
+
+        assertSame(build1, lrm.fromName("resource1").getBuild());
+        assertSame(build2, lrm.fromName("resource2").getBuild());
+        assertFalse(lrm.reserve(Collections.singletonList(lrm.fromName("resource1")), "user"));
+        assertTrue(lrm.getResourcesSnapshot().get(0).isLocked());
+        lrm.unlockBuild(build1);
+        assertTrue(lrm.fromName("resource1").isFree());
+    }
+}
@@ -0,0 +1,85 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+import java.util.Map;
+import jenkins.metrics.api.Metrics;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockableResourcesMetricProviderTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void lockIsMeasured() throws Exception {
+        LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
+        LockableResourcesMetricProvider provider =
+                j.jenkins.getExtensionList(LockableResourcesMetricProvider.class).get(0);
+        Map<String, Metric> metrics = provider.getMetricSet().getMetrics();
+        Timer lockWait = (Timer) metrics.get("lockable-resources.lock.wait");
+        final long before = lockWait.getCount();
+
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("lock(label: 'label1') {\n  echo 'Resource locked'\n}", true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+
+        assertEquals(before + 1, lockWait.getCount());
+        Timer labelWait = Metrics.metricRegistry().getTimers().get("lockable-resources.lock.wait.label.label1");
+        assertNotNull("registered on first use", labelWait);
+        assertEquals(1, labelWait.getCount());
+        assertTrue(((Timer) metrics.get("lockable-resources.save.duration")).getCount() > 0);
+        assertEquals(0, ((Gauge<?>) metrics.get("lockable-resources.queue.size")).getValue());
+    }
+
+    @Test
+    public void queueIsMeasuredWithoutThreadDump() throws Exception {
+        LockableResourcesManager.get().createResource("resource1");
+        Map<String, Metric> metrics = j.jenkins
+                .getExtensionList(LockableResourcesMetricProvider.class)
+                .get(0)
+                .getMetricSet()
+                .getMetrics();
+        assertFalse("opt-in", metrics.containsKey("lockable-resources.sync.blocked"));
+        Gauge<?> size = (Gauge<?>) metrics.get("lockable-resources.queue.size");
+        Gauge<?> oldest = (Gauge<?>) metrics.get("lockable-resources.queue.oldest");
+
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("lock('resource1') {
+  semaphore 'wait-inside'
+}", true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("[resource1] is not free, waiting for execution ...", b2);
+        // the message is printed right before the step is queued
+        while (LockableResourcesManager.get().getQueuedContextCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, size.getValue());
+        assertTrue((Long) oldest.getValue() >= 0);
+        assertTrue(LockableResourcesManager.get().getOldestQueuedAt() > 0);
+
+        SemaphoreStep.success("wait-inside/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        SemaphoreStep.success("wait-inside/2", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+        assertEquals(0, size.getValue());
+        assertEquals(0L, oldest.getValue());
+        assertEquals(0, LockableResourcesManager.get().getOldestQueuedAt());
+    }
+}
@@ -0,0 +1,56 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class QueueWakeupIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private static QueuedContextStruct waiter(LockableResourcesStruct requirement) {
+        return new QueuedContextStruct(null, Collections.singletonList(requirement), requirement.toString(), null, 0);
+    }
+
+    @Test
+    public void onlyInterestedWaitersAreReturned() {
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        lrm.createResourceWithLabel("r1", "a");
+        lrm.createResourceWithLabel("r2", "b c");
+        lrm.createResource("r3");
+        LockableResource r1 = lrm.fromName("r1");
+        LockableResource r2 = lrm.fromName("r2");
+        LockableResource r3 = lrm.fromName("r3");
+
+        QueuedContextStruct byLabel = waiter(new LockableResourcesStruct(null, "a", 1));
+        QueuedContextStruct byExpression = waiter(new LockableResourcesStruct(null, "b && c", 1));
+        QueuedContextStruct byName = waiter(new LockableResourcesStruct(Collections.singletonList("r3")));
+        QueuedContextStruct byNegation = waiter(new LockableResourcesStruct(null, "!a", 1));
+
+        QueueWakeupIndex index = new QueueWakeupIndex();
+        index.rebuild(Arrays.asList(byLabel, byExpression, byName, byNegation));
+
+        assertEquals(
+                new HashSet<>(Arrays.asList(byLabel, byNegation)),
+                index.getWaitersFor(Collections.singletonList(r1)));
+        assertEquals(
+                new HashSet<>(Arrays.asList(byExpression, byNegation)),
+                index.getWaitersFor(Collections.singletonList(r2)));
+        assertEquals(
+                new HashSet<>(Arrays.asList(byLabel, byName, byNegation)),
+                index.getWaitersFor(Arrays.asList(r1, r3)));
+
+        index.remove(byLabel);
+        index.remove(byNegation);
+        assertEquals(Collections.emptySet(), index.getWaitersFor(Collections.singletonList(r1)));
+        assertEquals(Collections.singleton(byName), index.getWaitersFor(Collections.singletonList(r3)));
+    }
+}
@@ -0,0 +1,86 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.junit.Test;
+
+public class QueuedContextsTest {
+
+    private static QueuedContextStruct entry(String name, int priority) {
+        return new QueuedContextStruct(null, Collections.emptyList(), name, null, priority);
+    }
+
+    @Test
+    public void priorityAndPrecedence() {
+        QueuedContexts queue = new QueuedContexts();
+        QueuedContextStruct a = entry("a", 0);
+        QueuedContextStruct b = entry("b", 0);
+        QueuedContextStruct high = entry("high", 10);
+        QueuedContextStruct inverse = entry("inverse", 0);
+        QueuedContextStruct middle = entry("middle", 5);
+
+        queue.add(a, false);
+        queue.add(b, false);
+        queue.add(high, false);
+        queue.add(inverse, true);
+        queue.add(middle, true); // inversePrecedence is ignored for non default priority
+
+        assertEquals(Arrays.asList(inverse, high, middle, a, b), queue.toList());
+        assertEquals(0, queue.indexOf(inverse));
+        assertSame(middle, queue.getById(middle.getId()));
+        assertSame(a, queue.get(3));
+
+        queue.swap(high, b);
+        assertEquals(Arrays.asList(inverse, b, middle, a, high), queue.toList());
+        assertEquals(Arrays.asList(b, a, high), queue.inQueueOrder(Arrays.asList(high, a, b)));
+
+        queue.remove(middle);
+        assertFalse(queue.contains(middle));
+        assertNull(queue.getById(middle.getId()));
+        assertEquals(Arrays.asList(inverse, b, a, high), queue.toList());
+    }
+
+    @Test
+    public void keepsOrderWhenRanksAreExhausted() {
+        QueuedContexts queue = new QueuedContexts();
+        List<QueuedContextStruct> expected = new ArrayList<>();
+        QueuedContextStruct low = entry("low", 0);
+        queue.add(low, false);
+        // each entry is inserted between the last high priority entry and 'low'
+        for (int i = 0; i < 100; i++) {
+            QueuedContextStruct high = entry("high" + i, 1);
+            queue.add(high, false);
+            expected.add(high);
+        }
+        expected.add(low);
+        assertEquals(expected, queue.toList());
+        assertEquals(100, queue.indexOf(low));
+    }
+
+    @Test
+    public void replayedByNeighbour() {
+        QueuedContexts queue = new QueuedContexts();
+        QueuedContextStruct a = entry("a", 0);
+        QueuedContextStruct b = entry("b", 0);
+        QueuedContextStruct c = entry("c", 5);
+        queue.add(a, false);
+        queue.add(b, false);
+        assertSame(a, queue.previous(b));
+        assertNull(queue.previous(a));
+
+        QueuedContexts replayed = new QueuedContexts();
+        replayed.addAfter(null, a);
+        replayed.addAfter(a.getId(), b);
+        // unknown neighbour, added by its priority
+        replayed.addAfter("removed", c);
+        assertEquals(Arrays.asList(c, a, b), replayed.toList());
+    }
+}
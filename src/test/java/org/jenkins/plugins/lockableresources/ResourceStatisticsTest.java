@@ -0,0 +1,121 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ResourceStatisticsTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void busyTimeInSlidingWindow() {
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        final long start = 10 * hour;
+        ResourceStatistics statistics = new ResourceStatistics(2 * hour, start);
+        List<LockableResource> existing = Collections.singletonList(new LockableResource("r1"));
+
+        statistics.locked("r1", "job", start);
+        statistics.unlocked("r1", start + hour / 2);
+
+        JSONObject r1 = resource(statistics, existing, start + hour / 2 + hour / 4);
+        assertEquals(1, r1.getInt("locks"));
+        assertEquals(hour / 2, r1.getLong("busy"));
+        assertEquals(hour / 4, r1.getLong("idle"));
+        assertEquals(66, r1.getInt("utilization"));
+
+        // still locked, counted up to now, in both halves of the window
+        statistics.locked("r1", "job", start + hour - 10);
+        r1 = resource(statistics, existing, start + hour + 10);
+        assertEquals(2, r1.getInt("locks"));
+        assertEquals(hour / 2 + 20, r1.getLong("busy"));
+
+        // older than the window
+        statistics.unlocked("r1", start + hour + 20);
+        r1 = resource(statistics, existing, start + 3 * hour + 10);
+        assertEquals(0, r1.getInt("locks"));
+        assertEquals(0, r1.getLong("busy"));
+    }
+
+    @Test
+    public void changeOfFreeResourceEndsBusyTime() {
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        final long now = System.currentTimeMillis();
+        ResourceStatistics statistics = new ResourceStatistics(2 * hour, now - hour);
+        LockableResource r1 = new LockableResource("r1");
+        List<LockableResource> existing = Collections.singletonList(r1);
+
+        // never locked, nothing to do
+        statistics.resourceChanged(r1);
+        assertEquals(0, resource(statistics, existing, now).getInt("locks"));
+
+        statistics.locked("r1", "job", now - 1000);
+        statistics.resourceChanged(r1);
+        final long busy = resource(statistics, existing, now + hour / 4).getLong("busy");
+        assertTrue("busy " + busy, busy >= 1000 && busy < hour / 4);
+    }
+
+    private static JSONObject resource(ResourceStatistics statistics, List<LockableResource> existing, long now) {
+        return statistics.toJson(existing, now).getJSONArray("resources").getJSONObject(0);
+    }
+
+    @Test
+    public void waitPercentiles() {
+        ResourceStatistics.WaitHistogram histogram = new ResourceStatistics.WaitHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertTrue(histogram.percentile(50) >= 500 && histogram.percentile(50) <= 500 * 1.125);
+        assertTrue(histogram.percentile(99) >= 990 && histogram.percentile(99) <= 1000);
+        assertEquals(0, new ResourceStatistics.WaitHistogram().percentile(50));
+
+        for (long value : new long[] {0, 1, 7, 8, 9, 1000, 123456789, Long.MAX_VALUE}) {
+            final long upperBound = ResourceStatistics.WaitHistogram.upperBound(
+                    ResourceStatistics.WaitHistogram.bucket(value));
+            assertTrue(value + " <= " + upperBound, value == Long.MAX_VALUE || value <= upperBound);
+        }
+    }
+
+    @Test
+    public void waitingLockStepIsCounted() throws Exception {
+        LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
+        WorkflowJob p1 = j.jenkins.createProject(WorkflowJob.class, "p1");
+        p1.setDefinition(new CpsFlowDefinition("lock(label: 'label1') {\n  semaphore 'wait-inside'\n}", true));
+        WorkflowJob p2 = j.jenkins.createProject(WorkflowJob.class, "p2");
+        p2.setDefinition(new CpsFlowDefinition("lock(label: 'label1') {\n  echo 'Resource locked'\n}", true));
+
+        WorkflowRun b1 = p1.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("is not free, waiting for execution", b2);
+        SemaphoreStep.success("wait-inside/1", null);
+        j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+        j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+
+        LockableResourcesManager lrm = LockableResourcesManager.get();
+        JSONObject statistics = lrm.getStatistics().toJson(lrm.getResourcesSnapshot());
+        JSONObject resource = statistics.getJSONArray("resources").getJSONObject(0);
+        assertEquals("resource1", resource.getString("name"));
+        assertEquals(2, resource.getInt("locks"));
+
+        JSONObject label = statistics.getJSONArray("labels").getJSONObject(0);
+        assertEquals("label1", label.getString("label"));
+        assertEquals(1, label.getInt("resources"));
+        assertEquals(2, label.getInt("locks"));
+        assertEquals(1, label.getInt("queued"));
+        assertEquals(2, label.getJSONObject("wait").getInt("count"));
+        assertEquals("p1", label.getJSONArray("blockers").getJSONObject(0).getString("job"));
+    }
+}
@@ -12,11 +12,17 @@ import hudson.model.Item;
 import hudson.model.User;
 import hudson.security.AccessDeniedException3;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.jenkins.plugins.lockableresources.LockStepTestBase;
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
@@ -441,6 +447,123 @@ public class LockableResourcesRootActionTest extends LockStepTestBase {
         action.doChangeQueueOrder(req, rsp);
     }
 
+    // ---------------------------------------------------------------------------
+    @Test
+    public void testDoTableData() throws Exception {
+        LockableResourcesRootAction action = new LockableResourcesRootAction();
+        for (int i = 0; i < 30; i++) {
+            this.LRM.createResourceWithLabel("resource-" + i, i % 2 == 0 ? "even" : "odd");
+        }
+        this.LRM.reserve(List.of(this.LRM.fromName("resource-3")), this.USER_WITH_RESERVE_PERM);
+
+        // nobody without permission
+        SecurityContextHolder.getContext().setAuthentication(this.user.impersonate2());
+        assertThrows(AccessDeniedException.class, () -> action.doTableData(req, rsp));
+
+        SecurityContextHolder.getContext().setAuthentication(this.reserve_user1.impersonate2());
+        when(req.getLocale()).thenReturn(Locale.ENGLISH);
+        when(req.getParameter("draw")).thenReturn("7");
+        when(req.getParameter("start")).thenReturn("10");
+        when(req.getParameter("length")).thenReturn("10");
+        JSONObject page = this.tableData(action);
+        assertEquals("draw is returned back", 7, page.getInt("draw"));
+        assertEquals("all resources", 30, page.getInt("recordsTotal"));
+        assertEquals("not filtered", 30, page.getInt("recordsFiltered"));
+        JSONArray data = page.getJSONArray("data");
+        assertEquals("one page only", 10, data.size());
+        assertEquals("second page", "resource-10", data.getJSONObject(0).getString("name"));
+        assertEquals("index in the table", 11, data.getJSONObject(0).getInt("index"));
+
+        // label filter and search
+        when(req.getParameter("start")).thenReturn("0");
+        when(req.getParameter("label")).thenReturn("odd");
+        when(req.getParameter("search[value]")).thenReturn("RESOURCE-1");
+        page = this.tableData(action);
+        assertEquals("odd resources 1, 11, 13 ... 19", 6, page.getInt("recordsFiltered"));
+
+        // sort by status, the reserved one is the last one
+        when(req.getParameter("search[value]")).thenReturn(null);
+        when(req.getParameter("order[0][column]")).thenReturn("2");
+        when(req.getParameter("order[0][dir]")).thenReturn("desc");
+        page = this.tableData(action);
+        JSONObject reserved = page.getJSONArray("data").getJSONObject(0);
+        assertEquals("reserved first", "resource-3", reserved.getString("name"));
+        assertEquals("RESERVED", reserved.getString("status"));
+        assertEquals(this.USER_WITH_RESERVE_PERM, reserved.getString("reservedBy"));
+        assertTrue("own reservation", reserved.getJSONArray("actions").contains("unreserve"));
+        assertFalse("no steal permission", reserved.getJSONArray("actions").contains("reassign"));
+        assertEquals(
+                "free one can be reserved",
+                List.of("reserve", "editNote"),
+                new ArrayList<Object>(page.getJSONArray("data").getJSONObject(1).getJSONArray("actions")));
+    }
+
+    private JSONObject tableData(LockableResourcesRootAction action) throws Exception {
+        StringWriter out = new StringWriter();
+        when(rsp.getWriter()).thenReturn(new PrintWriter(out));
+        action.doTableData(req, rsp);
+        return JSONObject.fromObject(out.toString());
+    }
+
+    // ---------------------------------------------------------------------------
+    @Test
+    public void testDoExport() throws Exception {
+        LockableResourcesRootAction action = new LockableResourcesRootAction();
+        for (int i = 0; i < 5; i++) {
+            this.LRM.createResourceWithLabel("resource-" + i, "export");
+        }
+
+        SecurityContextHolder.getContext().setAuthentication(this.user.impersonate2());
+        assertThrows(AccessDeniedException.class, () -> action.doExport(req, rsp));
+
+        SecurityContextHolder.getContext().setAuthentication(this.admin.impersonate2());
+        when(req.getParameter("fields")).thenReturn("status, labels,unknown");
+        List<JSONObject> lines = this.export(action);
+        assertEquals("revision and all resources", 6, lines.size());
+        JSONObject header = lines.get(0);
+        assertEquals("revision", header.getString("type"));
+        assertTrue("full export", header.getBoolean("full"));
+        JSONObject first = lines.get(1);
+        assertEquals("resource", first.getString("type"));
+        assertEquals("resource-0", first.getString("name"));
+        assertEquals("FREE", first.getString("status"));
+        assertEquals(List.of("export"), new ArrayList<Object>(first.getJSONArray("labels")));
+        assertFalse("not selected", first.has("note"));
+        assertFalse("unknown field", first.has("unknown"));
+
+        // nothing changed meanwhile
+        final long revision = header.getLong("revision");
+        when(req.getParameter("since")).thenReturn(Long.toString(revision));
+        lines = this.export(action);
+        assertEquals("revision only", 1, lines.size());
+        assertFalse("delta", lines.get(0).getBoolean("full"));
+
+        // only the changed resource
+        this.LRM.reserve(List.of(this.LRM.fromName("resource-2")), "someone");
+        lines = this.export(action);
+        assertEquals("revision and changed resource", 2, lines.size());
+        assertTrue("newer revision", lines.get(0).getLong("revision") > revision);
+        assertEquals("resource-2", lines.get(1).getString("name"));
+        assertEquals("RESERVED", lines.get(1).getString("status"));
+
+        // removed resource, the client must replace all of them
+        this.LRM.removeResources(List.of(this.LRM.fromName("resource-4")));
+        lines = this.export(action);
+        assertTrue("full export", lines.get(0).getBoolean("full"));
+        assertEquals("revision and the remaining resources", 5, lines.size());
+    }
+
+    private List<JSONObject> export(LockableResourcesRootAction action) throws Exception {
+        StringWriter out = new StringWriter();
+        when(rsp.getWriter()).thenReturn(new PrintWriter(out));
+        action.doExport(req, rsp);
+        List<JSONObject> lines = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            lines.add(JSONObject.fromObject(line));
+        }
+        return lines;
+    }
+
     // ---------------------------------------------------------------------------
     @Test
     public void testGetAllLabels() throws IOException, ServletException {
@@ -0,0 +1,48 @@
+package org.jenkins.plugins.lockableresources.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LabelExpressionCacheTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void parsedExpressionIsCached() {
+        LabelExpressionCache.invalidateAll();
+        final long hits = LabelExpressionCache.getHitCount();
+        final long misses = LabelExpressionCache.getMissCount();
+
+        Label first = LabelExpressionCache.parse("label1 && label2");
+        Label second = LabelExpressionCache.parse("label1 && label2");
+
+        assertSame(first, second);
+        assertEquals(misses + 1, LabelExpressionCache.getMissCount());
+        assertEquals(hits + 1, LabelExpressionCache.getHitCount());
+    }
+
+    @Test
+    public void matches() {
+        Set<LabelAtom> atoms = Set.of(new LabelAtom("label1"), new LabelAtom("label2"));
+
+        assertTrue(LabelExpressionCache.matches(LabelExpressionCache.parse("label1"), atoms));
+        assertTrue(LabelExpressionCache.matches(LabelExpressionCache.parse("label1 && label2"), atoms));
+        assertTrue(LabelExpressionCache.matches(LabelExpressionCache.parse("label1 && !label3"), atoms));
+        assertTrue(LabelExpressionCache.matches(LabelExpressionCache.parse("(label3 || label2)"), atoms));
+        assertTrue(LabelExpressionCache.matches(LabelExpressionCache.parse("label3 -> label1"), atoms));
+        assertTrue(LabelExpressionCache.matches(LabelExpressionCache.parse("label1 <-> label2"), atoms));
+        assertFalse(LabelExpressionCache.matches(LabelExpressionCache.parse("label3"), atoms));
+        assertFalse(LabelExpressionCache.matches(LabelExpressionCache.parse("label1 && label3"), atoms));
+        assertFalse(LabelExpressionCache.matches(LabelExpressionCache.parse("label1 -> label3"), atoms));
+    }
+}
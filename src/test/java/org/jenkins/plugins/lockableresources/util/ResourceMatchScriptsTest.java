@@ -0,0 +1,90 @@
+package org.jenkins.plugins.lockableresources.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import groovy.lang.Binding;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ResourceMatchScriptsTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @After
+    public void tearDown() {
+        ResourceMatchScripts.setParallelism(1);
+    }
+
+    @Test
+    public void scriptIsCompiledOnce() throws Exception {
+        final String text = "resourceName == 'resource1'";
+        ScriptApproval.get().preapprove(text, GroovyLanguage.get());
+        SecureGroovyScript script = new SecureGroovyScript(text, false, null).configuring(ApprovalContext.create());
+        ResourceMatchScripts.invalidateAll();
+        final long compiled = ResourceMatchScripts.getCompileCount();
+
+        Binding first = new Binding();
+        first.setVariable("resourceName", "resource1");
+        assertEquals(Boolean.TRUE, ResourceMatchScripts.evaluate(script, first));
+        Binding second = new Binding();
+        second.setVariable("resourceName", "resource2");
+        assertEquals(Boolean.FALSE, ResourceMatchScripts.evaluate(script, second));
+
+        assertEquals(compiled + 1, ResourceMatchScripts.getCompileCount());
+    }
+
+    @Test
+    public void parallelFilterKeepsOrder() throws Exception {
+        ResourceMatchScripts.setParallelism(4);
+        List<Integer> items = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(i);
+            if (i % 3 == 0) {
+                expected.add(i);
+            }
+        }
+
+        assertEquals(expected, ResourceMatchScripts.filter(items, i -> i % 3 == 0));
+    }
+
+    @Test
+    public void parallelFailureIsPropagated() {
+        ResourceMatchScripts.setParallelism(4);
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(i);
+        }
+        final ExecutionException failure = new ExecutionException("script failed", null);
+
+        ExecutionException thrown =
+                assertThrows(ExecutionException.class, () -> ResourceMatchScripts.filter(items, i -> {
+                    if (i == 900) {
+                        throw failure;
+                    }
+                    return true;
+                }));
+        assertSame(failure, thrown);
+
+        thrown = assertThrows(ExecutionException.class, () -> ResourceMatchScripts.filter(items, i -> {
+            if (i == 900) {
+                throw new IllegalStateException("unexpected");
+            }
+            return true;
+        }));
+        assertTrue(thrown.getCause() instanceof IllegalStateException);
+    }
+}